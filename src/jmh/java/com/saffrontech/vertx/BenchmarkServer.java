@@ -0,0 +1,79 @@
+package com.saffrontech.vertx;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.handler.sockjs.BridgeOptions;
+import io.vertx.ext.web.handler.sockjs.PermittedOptions;
+import io.vertx.ext.web.handler.sockjs.SockJSHandler;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process SockJS server and connected bridge shared by the benchmarks.
+ * Mirrors EventBusBridgeTest.createServer, but permits every address starting with "bench."
+ * and answers requests sent to "bench.echo".
+ */
+class BenchmarkServer {
+    static final int PORT = 8766;
+    static final URI END_POINT = URI.create("http://localhost:" + PORT + "/bridge");
+
+    Vertx vertx;
+    EventBusBridge bridge;
+
+    BenchmarkServer start() throws InterruptedException {
+        vertx = Vertx.vertx();
+        CountDownLatch latch = new CountDownLatch(1);
+        Router router = Router.router(vertx);
+
+        SockJSHandler sockJSHandler = SockJSHandler.create(vertx);
+        BridgeOptions options = new BridgeOptions()
+                .addInboundPermitted(new PermittedOptions().setAddressRegex("bench\\..+"))
+                .addOutboundPermitted(new PermittedOptions().setAddressRegex("bench\\..+"));
+        sockJSHandler.bridge(options);
+        router.route("/bridge/*").handler(sockJSHandler);
+
+        vertx.eventBus().consumer("bench.echo", msg -> msg.reply(msg.body()));
+        vertx.createHttpServer().requestHandler(router::accept).listen(PORT, res -> latch.countDown());
+        await(latch);
+        return this;
+    }
+
+    EventBusBridge connect() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        bridge = EventBusBridge.connect(END_POINT, eb -> latch.countDown(), vertx);
+        await(latch);
+        return bridge;
+    }
+
+    void stop() {
+        if (bridge != null) {
+            bridge.close();
+        }
+        vertx.close();
+    }
+
+    /** Create a String or JsonObject body whose encoded form is roughly payloadSize bytes. */
+    static Object body(String bodyType, int payloadSize) {
+        char[] chars = new char[payloadSize];
+        Arrays.fill(chars, 'x');
+        String text = new String(chars);
+        switch (bodyType) {
+            case "string":
+                return text;
+            case "json":
+                return new JsonObject().put("id", 42).put("name", "bench").put("payload", text);
+            default:
+                throw new IllegalArgumentException("Unknown body type " + bodyType);
+        }
+    }
+
+    private static void await(CountDownLatch latch) throws InterruptedException {
+        if (!latch.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Benchmark server did not come up");
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.saffrontech.vertx;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures decoding and local dispatch of inbound frames in bufferReceived.
+ * Frames use the envelope the SockJS bridge sends to clients.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReceiveBenchmark {
+    @Param({"string", "json"})
+    String bodyType;
+
+    @Param({"16", "256", "4096"})
+    int payloadSize;
+
+    BenchmarkServer server;
+    EventBusBridge bridge;
+    Buffer handledFrame;
+    Buffer forwardFrame;
+    Buffer unhandledFrame;
+    Object lastBody;
+    Buffer lastRawBody;
+
+    @Setup
+    public void setUp() throws InterruptedException {
+        server = new BenchmarkServer().start();
+        bridge = server.connect();
+        bridge.registerHandler("bench.in", msg -> lastBody = msg.body());
+        bridge.registerHandler("bench.forward", msg -> lastRawBody = msg.rawBody());
+        Object body = BenchmarkServer.body(bodyType, payloadSize);
+        handledFrame = Buffer.buffer(new JsonObject().put("address", "bench.in").put("body", body).encode());
+        forwardFrame = Buffer.buffer(new JsonObject().put("address", "bench.forward").put("body", body).encode());
+        unhandledFrame = Buffer.buffer(new JsonObject().put("address", "bench.nobody").put("body", body).encode());
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public void dispatch(Blackhole bh) {
+        bridge.bufferReceived(handledFrame);
+        bh.consume(lastBody);
+    }
+
+    /** A handler that forwards the raw body and never decodes it. */
+    @Benchmark
+    public void forwardRaw(Blackhole bh) {
+        bridge.bufferReceived(forwardFrame);
+        bh.consume(lastRawBody);
+    }
+
+    @Benchmark
+    public void dropUnhandled() {
+        bridge.bufferReceived(unhandledFrame);
+    }
+}
@@ -0,0 +1,53 @@
+package com.saffrontech.vertx;
+
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures request/reply round trips through the in-process SockJS server.
+ * The server echoes every message sent to "bench.echo".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReplyBenchmark {
+    @Param({"string", "json"})
+    String bodyType;
+
+    @Param({"16", "256", "4096"})
+    int payloadSize;
+
+    BenchmarkServer server;
+    EventBusBridge bridge;
+    Object body;
+
+    @Setup
+    public void setUp() throws InterruptedException {
+        server = new BenchmarkServer().start();
+        bridge = server.connect();
+        body = BenchmarkServer.body(bodyType, payloadSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public Object roundTrip() throws Exception {
+        CompletableFuture<Object> reply = new CompletableFuture<>();
+        MessageHandler<Object> replyHandler = msg -> reply.complete(msg.body());
+        if (body instanceof String) {
+            bridge.send("bench.echo", (String) body, replyHandler);
+        } else {
+            bridge.send("bench.echo", (JsonObject) body, replyHandler);
+        }
+        return reply.get(5, TimeUnit.SECONDS);
+    }
+}
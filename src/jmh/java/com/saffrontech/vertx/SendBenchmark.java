@@ -0,0 +1,54 @@
+package com.saffrontech.vertx;
+
+import io.vertx.core.buffer.Buffer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding of the envelope written for every send and publish.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SendBenchmark {
+    @Param({"string", "json"})
+    String bodyType;
+
+    @Param({"16", "256", "4096"})
+    int payloadSize;
+
+    BenchmarkServer server;
+    EventBusBridge bridge;
+    Object body;
+
+    @Setup
+    public void setUp() throws InterruptedException {
+        server = new BenchmarkServer().start();
+        bridge = server.connect();
+        body = BenchmarkServer.body(bodyType, payloadSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public Buffer encodeSend() {
+        return bridge.encodeMessage("send", "bench.sink", body, null);
+    }
+
+    @Benchmark
+    public Buffer encodePublish() {
+        return bridge.encodeMessage("publish", "bench.sink", body, null);
+    }
+
+    @Benchmark
+    public Buffer encodeWithReplyAddress() {
+        return bridge.encodeMessage("send", "bench.sink", body, "5b1e2c9a-7f3d-4c1b-9e2a-0d8f6b4a3c21");
+    }
+}
@@ -0,0 +1,166 @@
+package com.saffrontech.vertx;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reactive Streams publisher for the messages sent to an address.
+ * Every subscriber gets its own handler registration. Messages are buffered until the subscriber requests them.
+ * While a subscriber has bufferSize messages waiting, the websocket stops reading, which holds back all addresses of the bridge.
+ * Subscribers complete when the bridge is closed.
+ */
+class AddressPublisher<T> implements Publisher<EventBusBridge.EventBusMessage<T>> {
+    private final EventBusBridge bridge;
+    private final String address;
+    private final int bufferSize;
+
+    AddressPublisher(EventBusBridge bridge, String address, int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize must be positive");
+        }
+        this.bridge = bridge;
+        this.address = address;
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super EventBusBridge.EventBusMessage<T>> subscriber) {
+        Objects.requireNonNull(subscriber);
+        AddressSubscription subscription = new AddressSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        if (bridge.isOpen() || bridge.isReconnecting()) {
+            bridge.streams.add(subscription);
+            bridge.registerHandlerInternal(address, subscription);
+        } else {
+            subscription.complete();
+        }
+    }
+
+    class AddressSubscription implements Subscription, MessageHandler<T> {
+        private final Subscriber<? super EventBusBridge.EventBusMessage<T>> subscriber;
+        private final ConcurrentLinkedQueue<EventBusBridge.EventBusMessage<T>> buffer = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger buffered = new AtomicInteger();
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger(); // serializes signals to the subscriber
+        private volatile boolean cancelled;
+        private volatile boolean done;
+        private volatile Throwable error;
+        private volatile boolean paused;
+
+        AddressSubscription(Subscriber<? super EventBusBridge.EventBusMessage<T>> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        /** Called on the event loop for every message to the address. */
+        @Override
+        public void handle(EventBusBridge.EventBusMessage<T> message) {
+            if (cancelled) {
+                return;
+            }
+            // the received message is reused for the next handler, so buffer a copy
+            EventBusBridge.EventBusMessage<T> copy = bridge.new EventBusMessage<>(message);
+            copy.handler = this;
+            copy.registeredAddress = address;
+            buffer.add(copy);
+            if (buffered.incrementAndGet() >= bufferSize && !paused) {
+                paused = true;
+                bridge.pauseReading(this);
+            }
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("Rule 3.9: request must be positive, was " + n);
+                cancelSilently();
+                drain();
+                return;
+            }
+            long current;
+            do {
+                current = demand.get();
+                if (current == Long.MAX_VALUE) {
+                    break;
+                }
+            } while (!demand.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelSilently();
+            buffer.clear();
+        }
+
+        /** The bridge was closed. Buffered messages are still delivered. */
+        void complete() {
+            done = true;
+            drain();
+        }
+
+        private void cancelSilently() {
+            if (!cancelled) {
+                cancelled = true;
+                bridge.streams.remove(this);
+                bridge.unregisterHandlerInternal(address, this);
+                resume();
+            }
+        }
+
+        private void resume() {
+            if (paused) {
+                paused = false;
+                bridge.resumeReading(this);
+            }
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                if (error != null) {
+                    Throwable cause = error;
+                    error = null;
+                    done = false;
+                    buffer.clear();
+                    subscriber.onError(cause);
+                } else if (!cancelled) {
+                    deliver();
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void deliver() {
+            long remaining = demand.get();
+            long delivered = 0;
+            EventBusBridge.EventBusMessage<T> message;
+            while (delivered < remaining && !cancelled && (message = buffer.poll()) != null) {
+                buffered.decrementAndGet();
+                delivered++;
+                subscriber.onNext(message);
+            }
+            if (delivered > 0 && remaining != Long.MAX_VALUE) {
+                demand.addAndGet(-delivered);
+            }
+            if (paused && buffered.get() <= bufferSize / 2) {
+                resume();
+            }
+            if (done && buffer.isEmpty() && !cancelled) {
+                cancelled = true;
+                bridge.streams.remove(this);
+                resume();
+                subscriber.onComplete();
+            }
+        }
+    }
+}
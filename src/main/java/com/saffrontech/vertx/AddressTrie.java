@@ -0,0 +1,223 @@
+package com.saffrontech.vertx;
+
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * Handlers registered for address patterns, indexed by address segment.
+ * Segments are separated by '.'. A '*' segment matches exactly one segment,
+ * a trailing '>' matches one or more remaining segments. E.g. <code>orders.*</code> matches <code>orders.new</code>
+ * and <code>metrics.eu.&gt;</code> matches <code>metrics.eu.cpu.load</code>.
+ * Lookups walk one path per matching segment and never scan the list of patterns.
+ * Nodes are copy-on-write, so lookups take no locks. Changes are synchronized.
+ */
+class AddressTrie {
+    private static final String ONE = "*";
+    private static final String REST = ">";
+
+    private static class Node {
+        volatile Children children = Children.EMPTY;
+        volatile Node one;
+        volatile Node rest;
+        volatile DefaultHandler<?>[] handlers = HandlerRegistry.NO_HANDLERS;
+        String pattern;
+
+        Node child(String segment) {
+            if (ONE.equals(segment)) {
+                return one;
+            }
+            if (REST.equals(segment)) {
+                return rest;
+            }
+            return children.get(segment, 0, segment.length());
+        }
+    }
+
+    /**
+     * Immutable open addressing table of the literal segments below a node.
+     * Lookups take a segment as a range of the address, so matching does not create a substring per segment.
+     */
+    private static class Children {
+        static final Children EMPTY = new Children(new String[2], new Node[2], 0);
+
+        final String[] keys;
+        final Node[] nodes;
+        final int size;
+
+        Children(String[] keys, Node[] nodes, int size) {
+            this.keys = keys;
+            this.nodes = nodes;
+            this.size = size;
+        }
+
+        Node get(String address, int start, int end) {
+            int mask = keys.length - 1;
+            for (int i = hash(address, start, end) & mask; keys[i] != null; i = (i + 1) & mask) {
+                String key = keys[i];
+                if (key.length() == end - start && address.regionMatches(start, key, 0, key.length())) {
+                    return nodes[i];
+                }
+            }
+            return null;
+        }
+
+        Children with(String key, Node node) {
+            int capacity = keys.length;
+            while (capacity < 2 * (size + 1)) {
+                capacity *= 2;
+            }
+            Children updated = new Children(new String[capacity], new Node[capacity], size + 1);
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null) {
+                    updated.put(keys[i], nodes[i]);
+                }
+            }
+            updated.put(key, node);
+            return updated;
+        }
+
+        private void put(String key, Node node) {
+            int mask = keys.length - 1;
+            int i = hash(key, 0, key.length()) & mask;
+            while (keys[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            nodes[i] = node;
+        }
+
+        /** Same as String.hashCode of the range, spread over the low bits. */
+        private static int hash(String s, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + s.charAt(i);
+            }
+            return h ^ (h >>> 16);
+        }
+    }
+
+    private final Node root = new Node();
+    private volatile int size;
+
+    /** True if the address contains a wildcard segment. */
+    static boolean isPattern(String address) {
+        int start = 0;
+        while (start <= address.length()) {
+            int end = segmentEnd(address, start);
+            if (end - start == 1 && (address.charAt(start) == '*' || address.charAt(start) == '>')) {
+                return true;
+            }
+            start = end + 1;
+        }
+        return false;
+    }
+
+    private static int segmentEnd(String address, int start) {
+        int end = address.indexOf('.', start);
+        return end < 0 ? address.length() : end;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    synchronized void add(String pattern, DefaultHandler<?> handler) {
+        String[] segments = pattern.split("\\.", -1);
+        Node node = root;
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            if (REST.equals(segment) && i != segments.length - 1) {
+                throw new IllegalArgumentException("'>' must be the last segment of " + pattern);
+            }
+            Node child = node.child(segment);
+            if (child == null) {
+                child = new Node();
+                if (ONE.equals(segment)) {
+                    node.one = child;
+                } else if (REST.equals(segment)) {
+                    node.rest = child;
+                } else {
+                    node.children = node.children.with(segment, child);
+                }
+            }
+            node = child;
+        }
+        node.pattern = pattern;
+        DefaultHandler<?>[] updated = Arrays.copyOf(node.handlers, node.handlers.length + 1);
+        updated[node.handlers.length] = handler;
+        node.handlers = updated;
+        size++;
+    }
+
+    /** @return true if the handler, or an ExecutingHandler wrapping it, was registered for the pattern */
+    synchronized boolean remove(String pattern, DefaultHandler<?> handler) {
+        Node node = root;
+        for (String segment : pattern.split("\\.", -1)) {
+            node = node.child(segment);
+            if (node == null) {
+                return false;
+            }
+        }
+        DefaultHandler<?>[] current = node.handlers;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].equals(handler) || ExecutingHandler.unwrap(current[i]).equals(handler)) {
+                DefaultHandler<?>[] updated = new DefaultHandler<?>[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                node.handlers = updated;
+                size--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized void clear() {
+        root.children = Children.EMPTY;
+        root.one = null;
+        root.rest = null;
+        size = 0;
+    }
+
+    boolean matches(String address) {
+        if (isEmpty()) {
+            return false;
+        }
+        boolean[] found = new boolean[1];
+        forEachMatch(address, (pattern, handler) -> found[0] = true);
+        return found[0];
+    }
+
+    /** Call the consumer with the pattern and handler of every registration that matches the address. */
+    void forEachMatch(String address, BiConsumer<String, DefaultHandler<?>> consumer) {
+        if (!isEmpty()) {
+            match(root, address, 0, consumer);
+        }
+    }
+
+    private void match(Node node, String address, int start, BiConsumer<String, DefaultHandler<?>> consumer) {
+        if (start > address.length()) {
+            deliver(node, consumer);
+            return;
+        }
+        Node rest = node.rest;
+        if (rest != null) {
+            deliver(rest, consumer);
+        }
+        int end = segmentEnd(address, start);
+        Node exact = node.children.get(address, start, end);
+        if (exact != null) {
+            match(exact, address, end + 1, consumer);
+        }
+        Node one = node.one;
+        if (one != null) {
+            match(one, address, end + 1, consumer);
+        }
+    }
+
+    private static void deliver(Node node, BiConsumer<String, DefaultHandler<?>> consumer) {
+        for (DefaultHandler<?> handler : node.handlers) {
+            consumer.accept(node.pattern, handler);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.saffrontech.vertx;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Creates many bridges that share one Vertx instance and one HttpClient, including its SSL setup.
+ * Connecting a bridge then only opens a websocket, instead of starting event loops and loading certificates for every bridge.
+ * Connections are spread over the event loops of the Vertx instance.
+ *
+ * Since the HttpClient is shared, all bridges of a client use its options: SSL, frame size, proxy host and port.
+ */
+public class BridgeClient {
+    private final Vertx vertx;
+    private final boolean ownsVertx;
+    private final HttpClientOptions options;
+    private final HttpClient httpClient;
+    private final EventBusBridgeOptions bridgeOptions;
+    private final Set<EventBusBridge> bridges = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    /** A client with default http options, a 512K frame size and its own Vertx instance. */
+    public static BridgeClient create() {
+        return create(null, null, null);
+    }
+
+    /** @param options http options shared by all bridges, e.g. SSL settings */
+    public static BridgeClient create(HttpClientOptions options) {
+        return create(options, null, null);
+    }
+
+    /**
+     * @param options http options shared by all bridges (optional)
+     * @param bridgeOptions default bridge options, used if connect is not given any (optional)
+     * @param vertx a vertx instance (optional). If null, the client creates one and closes it in close().
+     */
+    public static BridgeClient create(HttpClientOptions options, EventBusBridgeOptions bridgeOptions, Vertx vertx) {
+        HttpClientOptions actualOptions = options == null
+                ? new HttpClientOptions().setMaxWebsocketFrameSize(EventBusBridge.MAX_SOCKET_FRAME_SIZE)
+                : new HttpClientOptions(options);
+        return new BridgeClient(actualOptions, bridgeOptions == null ? new EventBusBridgeOptions() : new EventBusBridgeOptions(bridgeOptions),
+                vertx == null ? Vertx.vertx() : vertx, vertx == null);
+    }
+
+    private BridgeClient(HttpClientOptions options, EventBusBridgeOptions bridgeOptions, Vertx vertx, boolean ownsVertx) {
+        this.options = options;
+        this.bridgeOptions = bridgeOptions;
+        this.vertx = vertx;
+        this.ownsVertx = ownsVertx;
+        this.httpClient = vertx.createHttpClient(options);
+    }
+
+    /** @see EventBusBridge#connect(URI, Handler) */
+    public EventBusBridge connect(URI endPoint, Handler<EventBusBridge> onOpenHandler) {
+        return connect(-1, null, endPoint, onOpenHandler, null);
+    }
+
+    public EventBusBridge connect(URI endPoint, Handler<EventBusBridge> onOpenHandler, EventBusBridgeOptions bridgeOptions) {
+        return connect(-1, null, endPoint, onOpenHandler, bridgeOptions);
+    }
+
+    /**
+     * Connect a bridge over the shared http client.
+     * @param port port to use or -1 to take it from the URL or the http options
+     * @param host the host to connect to or null to take it from the URL or the http options
+     * @param endPoint the actual endpoint. An https URL needs a client with SSL options and vice versa.
+     * @param bridgeOptions bridge options (optional). If null, the client's default bridge options are used.
+     */
+    public EventBusBridge connect(int port, String host, URI endPoint, Handler<EventBusBridge> onOpenHandler, EventBusBridgeOptions bridgeOptions) {
+        if (closed) {
+            throw new IllegalStateException("Bridge client is closed");
+        }
+        if (EventBusBridge.guessSsl(endPoint, options) != options.isSsl()) {
+            throw new IllegalArgumentException("The SSL setting of the client does not match " + endPoint);
+        }
+        EventBusBridge bridge = new EventBusBridge(EventBusBridge.guessPort(port, endPoint, options),
+                EventBusBridge.guessHost(host, endPoint, options),
+                endPoint, onOpenHandler,
+                new EventBusBridgeOptions(bridgeOptions == null ? this.bridgeOptions : bridgeOptions),
+                vertx, httpClient, bridges::remove);
+        bridges.add(bridge);
+        return bridge;
+    }
+
+    /** Number of bridges created by this client that are not closed yet. */
+    public int size() {
+        return bridges.size();
+    }
+
+    public Vertx vertx() {
+        return vertx;
+    }
+
+    /** Close all bridges of this client and the http client, and the Vertx instance if the client created it. */
+    public void close() {
+        closed = true;
+        for (EventBusBridge bridge : new ArrayList<>(bridges)) {
+            bridge.close();
+        }
+        bridges.clear();
+        httpClient.close();
+        if (ownsVertx) {
+            vertx.close();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.saffrontech.vertx;
+
+/**
+ * Receives measurements from EventBusBridge instances. All methods do nothing by default, so implementations only override what they need.
+ * Methods are called on the event loop of the bridge and, for sends, on the sending thread. They must be thread safe and fast.
+ * Traffic to reply addresses is reported under {@link #REPLIES}, since every reply has an address of its own.
+ * @see EventBusBridgeOptions#setMetrics(BridgeMetrics)
+ * @see SimpleBridgeMetrics
+ */
+public interface BridgeMetrics {
+    /** Address under which replies are reported. */
+    String REPLIES = "<replies>";
+
+    /** Metrics that measure nothing. The bridge skips taking measurements for it. */
+    BridgeMetrics NONE = new BridgeMetrics() {
+    };
+
+    /** A bridge using these metrics was created. Use it to read gauges like pendingReplies() and outboundQueueDepth(). */
+    default void bridgeCreated(EventBusBridge bridge) {
+    }
+
+    /** The bridge was closed and will not reconnect. */
+    default void bridgeClosed(EventBusBridge bridge) {
+    }
+
+    /** A message was sent or queued for sending. */
+    default void messageSent(String address, int bytes) {
+    }
+
+    /** A message for a local handler was received. Messages nobody listens to are dropped before they are counted. */
+    default void messageReceived(String address, int bytes) {
+    }
+
+    /** The server sent an error frame, e.g. because an address is not permitted. Error frames carry no address. */
+    default void errorReceived() {
+    }
+
+    default void encoded(long nanos) {
+    }
+
+    default void decoded(long nanos) {
+    }
+
+    /**
+     * A handler returned.
+     * @param address the address or pattern the handler was registered with
+     * @param nanos time spent in the handler. For handlers running on an executor, the time it took to hand the message over.
+     */
+    default void handlerExecuted(String address, long nanos) {
+    }
+
+    /** The connection was re-established. */
+    default void reconnected() {
+    }
+}
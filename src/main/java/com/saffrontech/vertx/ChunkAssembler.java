@@ -0,0 +1,110 @@
+package com.saffrontech.vertx;
+
+import io.vertx.core.buffer.Buffer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reassembles chunked messages. The bytes held for incomplete messages are bounded:
+ * when a chunk does not fit, the oldest incomplete messages are dropped, and a message larger than the bound is dropped entirely.
+ * Chunks must arrive in order; a message with a missing chunk is dropped.
+ * Not thread safe, it is only used on the event loop of its bridge.
+ */
+class ChunkAssembler {
+
+    private static class Partial {
+        final Buffer data = Buffer.buffer();
+        final int count;
+        int next = 1;
+
+        Partial(int count) {
+            this.count = count;
+        }
+    }
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Partial> partials = new LinkedHashMap<>();
+    private long bytes;
+
+    ChunkAssembler(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Add a chunk.
+     * @return the complete body once the last chunk arrived, otherwise null
+     */
+    Buffer add(String chunkId, int index, int count, Buffer data) {
+        if (index == 0) {
+            if (count == 1) {
+                return data;
+            }
+            remove(chunkId);
+            if (!makeRoom(data.length())) {
+                return null;
+            }
+            Partial partial = new Partial(count);
+            partial.data.appendBuffer(data);
+            partials.put(chunkId, partial);
+            bytes += data.length();
+            return null;
+        }
+        Partial partial = partials.get(chunkId);
+        if (partial == null) {
+            return null; // dropped earlier
+        }
+        if (index != partial.next || count != partial.count) {
+            remove(chunkId);
+            return null;
+        }
+        if (index == count - 1) {
+            remove(chunkId);
+            return partial.data.appendBuffer(data);
+        }
+        partials.remove(chunkId); // keep in the map, but without the bytes of this partial
+        bytes -= partial.data.length();
+        if (!makeRoom(partial.data.length() + data.length())) {
+            return null;
+        }
+        partial.data.appendBuffer(data);
+        partial.next++;
+        partials.put(chunkId, partial);
+        bytes += partial.data.length();
+        return null;
+    }
+
+    int size() {
+        return partials.size();
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    void clear() {
+        partials.clear();
+        bytes = 0;
+    }
+
+    private void remove(String chunkId) {
+        Partial removed = partials.remove(chunkId);
+        if (removed != null) {
+            bytes -= removed.data.length();
+        }
+    }
+
+    /** Drop the oldest partial messages until needed bytes fit. */
+    private boolean makeRoom(long needed) {
+        if (needed > maxBytes) {
+            return false;
+        }
+        Iterator<Map.Entry<String, Partial>> oldest = partials.entrySet().iterator();
+        while (bytes + needed > maxBytes && oldest.hasNext()) {
+            bytes -= oldest.next().getValue().data.length();
+            oldest.remove();
+        }
+        return true;
+    }
+}
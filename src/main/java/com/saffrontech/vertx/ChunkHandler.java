@@ -0,0 +1,18 @@
+package com.saffrontech.vertx;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * Receives the chunks of large messages as they arrive, instead of the reassembled message.
+ * @see EventBusBridge#registerChunkHandler(String, ChunkHandler)
+ */
+@FunctionalInterface
+public interface ChunkHandler {
+    /**
+     * @param chunkId identifies the message the chunk belongs to
+     * @param index position of the chunk, starting at 0. Chunks of a message arrive in order.
+     * @param count number of chunks of the message
+     * @param data the next part of the JSON encoded body
+     */
+    void handle(String chunkId, int index, int count, Buffer data);
+}
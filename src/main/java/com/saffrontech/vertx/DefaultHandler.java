@@ -12,6 +12,13 @@ public interface DefaultHandler<T> {
         throw new IllegalStateException("Use EventHandler or MessageHandler instead of this interface");
     }
 
+    /**
+     * Called instead of invoke if a reply this handler is waiting for failed, e.g. timed out.
+     * Ignored by default, use a ReplyHandler to be notified.
+     */
+    default void fail(Throwable cause, EventBusBridge eb) {
+    }
+
     default void unregister(String address, EventBusBridge eb) {
         eb.unregisterHandlerInternal(address, this);
     }
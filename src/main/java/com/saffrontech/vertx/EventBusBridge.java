@@ -1,35 +1,104 @@
 package com.saffrontech.vertx;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.MultiMap;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.eventbus.DeliveryOptions;
 import io.vertx.core.eventbus.Message;
+import io.vertx.core.eventbus.ReplyException;
+import io.vertx.core.eventbus.ReplyFailure;
+import io.vertx.core.http.CaseInsensitiveHeaders;
+import io.vertx.core.http.HttpClient;
 import io.vertx.core.http.HttpClientOptions;
 import io.vertx.core.http.HttpClientRequest;
 import io.vertx.core.http.WebSocket;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import org.reactivestreams.Publisher;
 
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Simple event bus bridge using Vert.x websockets.
- * Note: Only Message&lt;JsonObject&gt; and Message<lt;String&gt; is supported
+ * Note: Bodies are JSON values: String, JsonObject, JsonArray, numbers and booleans. Binary bodies travel as base64 strings.
  *
  * Created by beders on 6/23/15.
  */
 public class EventBusBridge {
     Vertx vertx;
-    WebSocket webSocket;
+    EventBusBridgeOptions bridgeOptions;
+    HttpClient httpClient;
+    int port;
+    String host;
+    String requestURI;
+    io.vertx.core.Handler<EventBusBridge> onOpenHandler;
+    io.vertx.core.Handler<EventBusBridge> reconnectHandler;
+    io.vertx.core.Handler<EventBusBridge> closeListener;
+    volatile WebSocket webSocket;
+    volatile boolean closed; // closed by the user, never reconnect
+    boolean opened; // the first connection was established
+    int reconnectAttempts;
+    long reconnectTimerID;
+    final OutboundQueue outbound = new OutboundQueue();
+    final ConcurrentLinkedQueue<OutboundQueue.PendingWrite> handOff = new ConcurrentLinkedQueue<>(); // written by other threads, for the event loop
+    final AtomicBoolean handOffScheduled = new AtomicBoolean();
+    final AtomicInteger handOffSize = new AtomicInteger(); // counts against the outbound queue size
+    volatile Context context; // of the current websocket
+    volatile io.vertx.core.Handler<Void> drainHandler;
+    final ArrayDeque<EventBusMessage<?>> inbound = new ArrayDeque<>(); // received, not yet dispatched. Event loop only
+    boolean inboundScheduled;
+    boolean paused; // by the inbound queue
+    final Set<Object> readPausers = new HashSet<>(); // the websocket reads while this is empty
+    final Set<AddressPublisher<?>.AddressSubscription> streams = ConcurrentHashMap.newKeySet();
     long pingTimerID;
-    ConcurrentHashMap<String, List<DefaultHandler<?>>> handlers = new ConcurrentHashMap<>();
-    ConcurrentHashMap<String, DefaultHandler<?>> replyHandlers = new ConcurrentHashMap<>();
+    volatile long roundTripTime = -1; // smoothed, in ns
+    BridgeMetrics metrics;
+    boolean metricsEnabled;
+    final HandlerRegistry handlers = new HandlerRegistry();
+    final AddressTrie patternHandlers = new AddressTrie();
+    final Subscriptions subscriptions = new Subscriptions();
+    final Set<String> explicitSubscriptions = ConcurrentHashMap.newKeySet();
+    final Map<String, Long> lingering = new HashMap<>(); // registered at the server during the unregister grace period, with the timer. Guarded by itself
+    long lingerTasks; // ids of lingering entries without a timer, counting down from -1. Guarded by lingering
+    final Set<CompletableFuture<Void>> pendingSubscriptions = new HashSet<>(); // batches waiting for their probe reply, event loop only
+    final List<CompletableFuture<Void>> resubscribing = new ArrayList<>(); // batches made during an outage, waiting for the reconnect. Guarded by itself
+    final ReplyHandlers replyHandlers = new ReplyHandlers();
+    final TimingWheel replyTimeouts = new TimingWheel(REPLY_TIMEOUT_TICK, 512);
+    long replyTimerID;
+    final FrameEncoder encoder = new FrameEncoder();
+    final String chunkIdPrefix = String.format("%016x.", ThreadLocalRandom.current().nextLong());
+    final AtomicLong chunkIds = new AtomicLong();
+    ChunkAssembler chunks; // event loop only
+    final ConcurrentHashMap<String, Set<ChunkHandler>> chunkHandlers = new ConcurrentHashMap<>();
 
     static final int MAX_SOCKET_FRAME_SIZE = 2*(int)Math.pow(2,18); // 512K max payload
+    static final long REPLY_TIMEOUT_TICK = 50; // resolution of reply timeouts in ms
+    /** Pings carry no data, so one pre-encoded frame serves every ping of every bridge. */
+    private static final Buffer PING = Buffer.buffer("{\"type\":\"ping\"}");
+    private static final ReplyHandler<Object> IGNORE_REPLY = result -> {};
+    static final int DEFAULT_PUBLISHER_BUFFER_SIZE = 256;
+    static final int INBOUND_BATCH_SIZE = 64; // messages dispatched per event loop turn when the inbound queue is enabled
+    static final int HAND_OFF_BATCH_SIZE = 256; // frames from other threads written per event loop turn
 
     /** Create an event bus bridge using an absolute URL and default socket frame size (512K). */
     public static EventBusBridge connect(URI endPoint, io.vertx.core.Handler<EventBusBridge> onOpenHandler) {
@@ -91,7 +160,30 @@ public class EventBusBridge {
         return connect(-1, null, endPoint, onOpenHandler, new HttpClientOptions().setMaxWebsocketFrameSize(maxSocketFrameSize), vertx);
     }
 
+    /**
+     * Create an event bus bridge using an absolute URL and bridge options.
+     * @see EventBusBridgeOptions
+     */
+    public static EventBusBridge connect(URI endPoint, io.vertx.core.Handler<EventBusBridge> onOpenHandler, EventBusBridgeOptions bridgeOptions) {
+        return connect(-1, null, endPoint, onOpenHandler, null, bridgeOptions, null);
+    }
+
     public static EventBusBridge connect(int port, String host, URI endPoint, io.vertx.core.Handler<EventBusBridge> onOpenHandler, HttpClientOptions options, Vertx vertx) {
+        return connect(port, host, endPoint, onOpenHandler, options, null, vertx);
+    }
+
+    /**
+     * Connect with all options.
+     * @param port port to use or -1 to take it from the URL or the http options
+     * @param host the host to connect to or null to take it from the URL or the http options
+     * @param endPoint the actual endpoint
+     * @param onOpenHandler
+     * @param options http options (optional)
+     * @param bridgeOptions bridge options (optional)
+     * @param vertx a vertx instance (optional)
+     * @return
+     */
+    public static EventBusBridge connect(int port, String host, URI endPoint, io.vertx.core.Handler<EventBusBridge> onOpenHandler, HttpClientOptions options, EventBusBridgeOptions bridgeOptions, Vertx vertx) {
         HttpClientOptions actualOptions = options == null ? new HttpClientOptions().setMaxWebsocketFrameSize(MAX_SOCKET_FRAME_SIZE) : options;
         int actualPort = guessPort(port, endPoint, actualOptions);
         String actualHost = guessHost(host, endPoint, actualOptions);
@@ -99,11 +191,13 @@ public class EventBusBridge {
 
         return new EventBusBridge(actualPort,
                 actualHost,
-                endPoint, onOpenHandler, actualOptions, Optional.ofNullable(vertx));
+                endPoint, onOpenHandler, actualOptions,
+                bridgeOptions == null ? new EventBusBridgeOptions() : new EventBusBridgeOptions(bridgeOptions),
+                Optional.ofNullable(vertx));
     }
 
     /** Guess port: It is either set explicitly, taken from the absolute URL or taken from the default options */
-    private static int guessPort(int port, URI endPoint, HttpClientOptions options) {
+    static int guessPort(int port, URI endPoint, HttpClientOptions options) {
         if (port != -1) return port;
         if (endPoint.isAbsolute()) {
             if (endPoint.getPort() == -1) {
@@ -117,7 +211,7 @@ public class EventBusBridge {
     }
 
     /** Guess host:  It is either set explicitly, taken from the absolute URL or taken from the default options */
-    private static String guessHost(String host, URI endPoint, HttpClientOptions actualOptions) {
+    static String guessHost(String host, URI endPoint, HttpClientOptions actualOptions) {
         if (host == null || host.isEmpty()) {
             if (endPoint.isAbsolute()) {
                 return endPoint.getHost();
@@ -130,7 +224,7 @@ public class EventBusBridge {
     }
 
     /** Guess SSL: Either taken from scheme or set directly in options */
-    private static boolean guessSsl(URI endPoint, HttpClientOptions options) {
+    static boolean guessSsl(URI endPoint, HttpClientOptions options) {
         if (endPoint.isAbsolute()) {
             return endPoint.getScheme().equals("https");
         } else {
@@ -143,32 +237,371 @@ public class EventBusBridge {
         return scheme.equals("https") ? 443 : 80;
     }
 
-    private EventBusBridge(int port, String host, URI endPoint, io.vertx.core.Handler<EventBusBridge> onOpenHandler, HttpClientOptions options, Optional<Vertx> aVertx) {
+    private EventBusBridge(int port, String host, URI endPoint, io.vertx.core.Handler<EventBusBridge> onOpenHandler, HttpClientOptions options, EventBusBridgeOptions bridgeOptions, Optional<Vertx> aVertx) {
+        this(port, host, endPoint, onOpenHandler, bridgeOptions, aVertx.orElseGet(Vertx::vertx), options);
+    }
+
+    private EventBusBridge(int port, String host, URI endPoint, io.vertx.core.Handler<EventBusBridge> onOpenHandler, EventBusBridgeOptions bridgeOptions, Vertx vertx, HttpClientOptions options) {
+        this(port, host, endPoint, onOpenHandler, bridgeOptions, vertx, vertx.createHttpClient(options), null);
+    }
 
-        vertx = aVertx.orElse(Vertx.vertx());
-        vertx.createHttpClient(options).websocket(port, host, endPoint.toString() + "/websocket", ws -> {
+    /**
+     * Open a bridge over an existing http client, see BridgeClient.
+     * @param closeListener called once the bridge is closed for good (optional)
+     */
+    EventBusBridge(int port, String host, URI endPoint, io.vertx.core.Handler<EventBusBridge> onOpenHandler, EventBusBridgeOptions bridgeOptions,
+                   Vertx vertx, HttpClient httpClient, io.vertx.core.Handler<EventBusBridge> closeListener) {
+        this.bridgeOptions = bridgeOptions;
+        this.port = port;
+        this.host = host;
+        this.requestURI = endPoint.toString() + "/websocket";
+        this.onOpenHandler = onOpenHandler;
+        this.closeListener = closeListener;
+        this.vertx = vertx;
+        this.httpClient = httpClient;
+        chunks = new ChunkAssembler(bridgeOptions.getMaxReassemblySize());
+        metrics = bridgeOptions.getMetrics();
+        metricsEnabled = metrics != BridgeMetrics.NONE;
+        metrics.bridgeCreated(this);
+        openWebSocket();
+    }
+
+    private void openWebSocket() {
+        httpClient.websocket(port, host, requestURI, this::webSocketOpened, this::webSocketFailed);
+    }
+
+    private void webSocketOpened(WebSocket ws) {
+        if (closed) {
+            ws.close();
+            if (!opened) {
+                webSocketClosed(); // closed while connecting, nothing else will clean up
+            }
+            return;
+        }
+        context = vertx.getOrCreateContext();
+        synchronized (readPausers) {
             webSocket = ws;
-            ws.handler(this::bufferReceived);
-            ws.closeHandler(it -> {
-                if (pingTimerID != 0) {
-                    vertx.cancelTimer(pingTimerID);
-                }
-                handlers.clear();
-                replyHandlers.clear();
-            });
+            if (!readPausers.isEmpty()) {
+                ws.pause();
+            }
+        }
+        ws.handler(this::bufferReceived);
+        ws.closeHandler(it -> webSocketClosed());
+        if (!opened) {
+            opened = true;
             onOpenHandler.handle(EventBusBridge.this);
-            sendPing();
-            pingTimerID = vertx.setPeriodic(5000L, time -> sendPing());
+        } else {
+            reconnectAttempts = 0;
+            metrics.reconnected();
+            // register again before anything sent during the outage goes out
+            List<Buffer> registrations = new ArrayList<>();
+            for (String address : subscriptions.addresses()) {
+                registrations.add(encoder.encode("register", address));
+            }
+            outbound.addFirst(registrations);
+            drainOutbound();
+            resubscribed();
+            if (reconnectHandler != null) {
+                reconnectHandler.handle(this);
+            }
+        }
+        sendPing();
+        if (bridgeOptions.getHeartbeatInterval() > 0) {
+            pingTimerID = vertx.setPeriodic(bridgeOptions.getHeartbeatInterval(), time -> heartbeat());
+        }
+    }
+
+    private void webSocketFailed(Throwable cause) {
+        if (isReconnecting()) {
+            scheduleReconnect();
+        } else if (!opened) {
+            webSocketClosed(); // the first connect failed, so the bridge is closed for good
+        }
+    }
+
+    private void webSocketClosed() {
+        if (pingTimerID != 0) {
+            vertx.cancelTimer(pingTimerID);
+            pingTimerID = 0;
+        }
+        webSocket = null;
+        chunks.clear(); // the rest of these messages was lost with the connection
+        clearLingering(); // the server drops the registrations of a closed socket
+        if (isReconnecting()) {
+            // replies to requests sent over the lost connection will never arrive
+            failPendingReplies(new ReplyException(ReplyFailure.RECIPIENT_FAILURE, "Connection lost"));
+            scheduleReconnect();
+            return;
+        }
+        handlers.clear();
+        patternHandlers.clear();
+        subscriptions.clear();
+        explicitSubscriptions.clear();
+        chunkHandlers.clear();
+        outbound.close();
+        failResubscribing();
+        metrics.bridgeClosed(this);
+        for (AddressPublisher<?>.AddressSubscription stream : streams) {
+            stream.complete();
+        }
+        failPendingReplies(new ReplyException(ReplyFailure.RECIPIENT_FAILURE, "Connection closed"));
+        if (closeListener != null) {
+            closeListener.handle(this);
+        }
+    }
+
+    /** True if the connection will be re-established when it drops. */
+    boolean isReconnecting() {
+        return bridgeOptions.isReconnect() && !closed;
+    }
 
+    /** Exponential backoff with jitter, so that many clients do not reconnect at the same moment after a server restart. */
+    private void scheduleReconnect() {
+        long delay = bridgeOptions.getReconnectInitialDelay() << Math.min(reconnectAttempts, 20);
+        delay = Math.max(1, Math.min(delay, bridgeOptions.getReconnectMaxDelay()));
+        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        reconnectAttempts++;
+        reconnectTimerID = vertx.setTimer(delay, id -> {
+            reconnectTimerID = 0;
+            if (!closed) {
+                openWebSocket();
+            }
         });
     }
 
+    /**
+     * Called after the connection was re-established, the handlers were registered again and buffered messages were sent.
+     * Only used if reconnect is enabled in EventBusBridgeOptions.
+     */
+    public EventBusBridge reconnectHandler(io.vertx.core.Handler<EventBusBridge> reconnectHandler) {
+        this.reconnectHandler = reconnectHandler;
+        return this;
+    }
+
+    /**
+     * True if a message sent now would not fit into the outbound queue, or into the websocket's write queue if the outbound queue is unbounded.
+     * Frames handed over by other threads and not yet written count against the outbound queue.
+     * Use drainHandler to get notified once there is room again.
+     */
+    public boolean writeQueueFull() {
+        WebSocket ws = webSocket;
+        if (ws == null) {
+            return !(opened && isReconnecting()) || outbound.size() >= bridgeOptions.getReconnectBufferSize();
+        }
+        int limit = bridgeOptions.getOutboundQueueSize();
+        return limit > 0 ? outbound.size() + handOffSize.get() >= limit : isFull(ws);
+    }
+
+    /** Called once when the write queue is no longer full. */
+    public EventBusBridge drainHandler(io.vertx.core.Handler<Void> handler) {
+        drainHandler = handler;
+        WebSocket ws = webSocket;
+        if (handler != null && ws != null) {
+            scheduleDrain(ws);
+        }
+        return this;
+    }
+
+    /** Write a frame, or queue it if the websocket cannot take it now. */
+    void write(Buffer frame) {
+        write(frame, null);
+    }
+
+    /**
+     * @param written completed when the frame is handed to the websocket, failed if it is dropped. If null, rejections throw.
+     */
+    void write(Buffer frame, CompletableFuture<Void> written) {
+        WebSocket ws = webSocket;
+        if (ws == null) {
+            if (!(opened && isReconnecting())) {
+                reject(written, new IllegalStateException("Event bus bridge is not open"));
+                return;
+            }
+            // during an outage, always refuse instead of blocking or dropping silently
+            outbound.offer(new OutboundQueue.PendingWrite(frame, written), bridgeOptions.getReconnectBufferSize(), OverflowPolicy.FAIL);
+            return;
+        }
+        int limit = bridgeOptions.getOutboundQueueSize();
+        // frames handed over by other threads are not in the websocket's write queue yet, so they count separately
+        if (outbound.isEmpty() && (limit == 0 || (!isFull(ws) && handOffSize.get() < limit))) {
+            writeToSocket(ws, frame, written);
+            return;
+        }
+        outbound.offer(new OutboundQueue.PendingWrite(frame, written), limit, bridgeOptions.getOverflowPolicy());
+        scheduleDrain(ws);
+    }
+
+    /**
+     * Write a frame right away. Frames written by other threads are handed to the websocket's event loop, which writes them in batches.
+     */
+    private void writeToSocket(WebSocket ws, Buffer frame, CompletableFuture<Void> written) {
+        if (Vertx.currentContext() != context) {
+            handOffSize.incrementAndGet();
+            handOff.add(new OutboundQueue.PendingWrite(frame, written));
+            if (handOffScheduled.compareAndSet(false, true)) {
+                context.runOnContext(v -> drainHandOff());
+            }
+            return;
+        }
+        ws.write(frame);
+        if (written != null) {
+            written.complete(null);
+        }
+    }
+
+    /** Write the frames handed over by other threads, in order, at most HAND_OFF_BATCH_SIZE per event loop task. */
+    private void drainHandOff() {
+        if (Vertx.currentContext() != context) {
+            context.runOnContext(v -> drainHandOff()); // reconnected in between, the websocket has a new event loop
+            return;
+        }
+        handOffScheduled.set(false);
+        List<OutboundQueue.PendingWrite> batch = new ArrayList<>();
+        OutboundQueue.PendingWrite write;
+        while (batch.size() < HAND_OFF_BATCH_SIZE && (write = handOff.poll()) != null) {
+            batch.add(write);
+        }
+        handOffSize.addAndGet(-batch.size());
+        if (!batch.isEmpty()) {
+            writeHandOff(batch);
+        }
+        if (!handOff.isEmpty() && handOffScheduled.compareAndSet(false, true)) {
+            context.runOnContext(v -> drainHandOff());
+        } else if (outbound.isEmpty()) {
+            notifyDrained(); // the hand-off was all that filled the queue
+        }
+    }
+
+    private void writeHandOff(List<OutboundQueue.PendingWrite> batch) {
+        WebSocket ws = webSocket;
+        if (ws == null) {
+            // the connection dropped after the frames were handed over
+            for (OutboundQueue.PendingWrite write : batch) {
+                if (opened && isReconnecting()) {
+                    try {
+                        outbound.offer(write, bridgeOptions.getReconnectBufferSize(), OverflowPolicy.FAIL);
+                    } catch (IllegalStateException full) {
+                        // a send without future, nobody to tell
+                    }
+                } else if (write.written != null) {
+                    write.written.completeExceptionally(new IllegalStateException("Event bus bridge is not open"));
+                }
+            }
+            return;
+        }
+        try {
+            ws.writeQueueFull(); // throws if closed, before anything is written
+            for (OutboundQueue.PendingWrite write : batch) {
+                ws.write(write.frame);
+            }
+            for (OutboundQueue.PendingWrite write : batch) {
+                if (write.written != null) {
+                    write.written.complete(null);
+                }
+            }
+        } catch (IllegalStateException closed) {
+            for (OutboundQueue.PendingWrite write : batch) {
+                if (write.written != null) {
+                    write.written.completeExceptionally(closed);
+                }
+            }
+        }
+    }
+
+    private void scheduleDrain(WebSocket ws) {
+        try {
+            ws.drainHandler(v -> drainOutbound());
+            if (!ws.writeQueueFull()) {
+                context.runOnContext(v -> drainOutbound()); // drained before the handler was set
+            }
+        } catch (IllegalStateException closed) {
+            // the close handler takes over
+        }
+    }
+
+    private void drainOutbound() {
+        WebSocket ws = webSocket;
+        if (ws == null) {
+            return;
+        }
+        drainHandOff(); // frames written before the queue filled up go first
+        try {
+            if (!outbound.drainTo(ws)) {
+                ws.drainHandler(v -> drainOutbound());
+                return;
+            }
+        } catch (IllegalStateException closed) {
+            return;
+        }
+        notifyDrained();
+    }
+
+    /** Call the drain handler if there is room again. Event loop only. */
+    private void notifyDrained() {
+        io.vertx.core.Handler<Void> handler = drainHandler;
+        if (handler != null && !writeQueueFull()) {
+            drainHandler = null;
+            handler.handle(null);
+        }
+    }
+
+    private static boolean isFull(WebSocket ws) {
+        try {
+            return ws.writeQueueFull();
+        } catch (IllegalStateException closed) {
+            return true;
+        }
+    }
+
+    private static void reject(CompletableFuture<Void> written, IllegalStateException cause) {
+        if (written == null) {
+            throw cause;
+        }
+        written.completeExceptionally(cause);
+    }
+
+    private void checkOpen() {
+        if (webSocket == null && !(opened && isReconnecting())) {
+            throw new IllegalStateException("Event bus bridge is not open");
+        }
+    }
+
+    /**
+     * Keep the connection alive. The server only counts ping frames, not other traffic, so every heartbeat is a ping.
+     * With a probe address, a request whose reply measures the round trip time is sent along with it.
+     */
+    private void heartbeat() {
+        String probeAddress = bridgeOptions.getHeartbeatProbeAddress();
+        if (probeAddress != null && webSocket != null) {
+            try {
+                sendMessage("send", probeAddress, null, IGNORE_REPLY, bridgeOptions.getHeartbeatInterval());
+            } catch (IllegalStateException closed) {
+                // the close handler takes over
+            }
+        }
+        sendPing();
+    }
+
+    /**
+     * Smoothed round trip time of requests over this bridge, measured from sending a request to receiving its reply.
+     * This includes the time the receiver takes to reply, so use a heartbeat probe address with a trivial consumer for a clean signal.
+     * @return the round trip time in the given unit or -1 if no reply was received yet
+     */
+    public long roundTripTime(TimeUnit unit) {
+        long rtt = roundTripTime;
+        return rtt < 0 ? -1 : unit.convert(rtt, TimeUnit.NANOSECONDS);
+    }
+
+    /** Exponentially weighted moving average with a gain of 1/8, like TCP's smoothed RTT. */
+    private void recordRoundTrip(long nanos) {
+        long rtt = roundTripTime;
+        roundTripTime = rtt < 0 ? nanos : rtt + (nanos - rtt) / 8;
+    }
+
     protected void sendPing() {
-        //System.out.println("Sending ping");
         if (webSocket != null) {
-            JsonObject msg = new JsonObject().put("type", "ping");
             try {
-                webSocket.write(Buffer.buffer(msg.toString()));
+                writeToSocket(webSocket, PING, null);
             } catch (IllegalStateException ise) {
                 vertx.cancelTimer(pingTimerID);
             }
@@ -178,77 +611,219 @@ public class EventBusBridge {
     }
 
     public EventBusBridge send(String address, String message) {
-        Objects.requireNonNull(webSocket);
+        checkOpen();
         sendMessage("send", address, message, null);
         return this;
     }
 
     public EventBusBridge publish(String address, String message) {
-        Objects.requireNonNull(webSocket);
+        checkOpen();
         sendMessage("publish", address, message, null);
         return this;
     }
 
     public EventBusBridge send(String address, String message, EventHandler<?> replyHandler) {
-        Objects.requireNonNull(webSocket);
+        checkOpen();
         sendMessage("send", address, message, replyHandler);
         return this;
     }
 
     public EventBusBridge publish(String address, String message, EventHandler<?> replyHandler) {
-        Objects.requireNonNull(webSocket);
+        checkOpen();
         sendMessage("publish", address, message, replyHandler);
         return this;
     }
 
     public EventBusBridge send(String address, String message, MessageHandler<?> replyHandler) {
-        Objects.requireNonNull(webSocket);
+        checkOpen();
         sendMessage("send", address, message, replyHandler);
         return this;
     }
 
     public EventBusBridge publish(String address, String message, MessageHandler<?> replyHandler) {
-        Objects.requireNonNull(webSocket);
+        checkOpen();
         sendMessage("publish", address, message, replyHandler);
         return this;
     }
 
     public EventBusBridge send(String address, JsonObject message) {
-        Objects.requireNonNull(webSocket);
+        checkOpen();
         sendMessage("send", address, message, null);
         return this;
     }
 
     public EventBusBridge publish(String address, JsonObject message) {
-        Objects.requireNonNull(webSocket);
+        checkOpen();
         sendMessage("publish", address, message, null);
         return this;
     }
 
     public EventBusBridge send(String address, JsonObject message, EventHandler<?> replyHandler) {
-        Objects.requireNonNull(webSocket);
+        checkOpen();
         sendMessage("send", address, message, replyHandler);
         return this;
     }
 
     public EventBusBridge publish(String address, JsonObject message, EventHandler<?> replyHandler) {
-        Objects.requireNonNull(webSocket);
+        checkOpen();
         sendMessage("publish", address, message, replyHandler);
         return this;
     }
 
     public EventBusBridge send(String address, JsonObject message, MessageHandler<?> replyHandler) {
-        Objects.requireNonNull(webSocket);
+        checkOpen();
         sendMessage("send", address, message, replyHandler);
         return this;
     }
 
     public EventBusBridge publish(String address, JsonObject message, MessageHandler<?> replyHandler) {
-        Objects.requireNonNull(webSocket);
+        checkOpen();
         sendMessage("publish", address, message, replyHandler);
         return this;
     }
 
+    /**
+     * Send a body of any type the bridge can encode: String, JsonObject, JsonArray, numbers, booleans,
+     * or binary data as Buffer or byte[]. Binary data is sent as a base64 string, which receivers decode with binaryBody().
+     */
+    public EventBusBridge send(String address, Object message) {
+        checkOpen();
+        sendMessage("send", address, message, null);
+        return this;
+    }
+
+    /** @see EventBusBridge#send(String, Object) */
+    public EventBusBridge publish(String address, Object message) {
+        checkOpen();
+        sendMessage("publish", address, message, null);
+        return this;
+    }
+
+    /** Send a message with the headers of the delivery options. */
+    public EventBusBridge send(String address, Object message, DeliveryOptions options) {
+        checkOpen();
+        sendMessage("send", address, message, null, 0, options.getHeaders());
+        return this;
+    }
+
+    /** Publish a message with the headers of the delivery options. */
+    public EventBusBridge publish(String address, Object message, DeliveryOptions options) {
+        checkOpen();
+        sendMessage("publish", address, message, null, 0, options.getHeaders());
+        return this;
+    }
+
+    /**
+     * Send a message and wait for a reply.
+     * The reply handler receives a failed result with a ReplyException if no reply arrives within options.getSendTimeout() ms.
+     */
+    public EventBusBridge send(String address, String message, DeliveryOptions options, ReplyHandler<?> replyHandler) {
+        checkOpen();
+        sendMessage("send", address, message, replyHandler, options.getSendTimeout(), options.getHeaders());
+        return this;
+    }
+
+    /** @see EventBusBridge#send(String, String, DeliveryOptions, ReplyHandler) */
+    public EventBusBridge send(String address, JsonObject message, DeliveryOptions options, ReplyHandler<?> replyHandler) {
+        checkOpen();
+        sendMessage("send", address, message, replyHandler, options.getSendTimeout(), options.getHeaders());
+        return this;
+    }
+
+    /** @see EventBusBridge#send(String, Object) */
+    public EventBusBridge send(String address, Object message, DeliveryOptions options, ReplyHandler<?> replyHandler) {
+        checkOpen();
+        sendMessage("send", address, message, replyHandler, options.getSendTimeout(), options.getHeaders());
+        return this;
+    }
+
+    /**
+     * Send a message without waiting for a reply.
+     * @return a future that completes when the message is handed to the websocket, or fails if the outbound queue rejects or drops it
+     * @see EventBusBridgeOptions#setOutboundQueueSize(int)
+     */
+    public CompletableFuture<Void> sendAsync(String address, String message) {
+        return sendMessageAsync("send", address, message);
+    }
+
+    /** @see EventBusBridge#sendAsync(String, String) */
+    public CompletableFuture<Void> sendAsync(String address, JsonObject message) {
+        return sendMessageAsync("send", address, message);
+    }
+
+    /** @see EventBusBridge#sendAsync(String, String) */
+    public CompletableFuture<Void> sendAsync(String address, Object message) {
+        return sendMessageAsync("send", address, message);
+    }
+
+    /** @see EventBusBridge#sendAsync(String, String) */
+    public CompletableFuture<Void> publishAsync(String address, Object message) {
+        return sendMessageAsync("publish", address, message);
+    }
+
+    /** @see EventBusBridge#sendAsync(String, String) */
+    public CompletableFuture<Void> publishAsync(String address, String message) {
+        return sendMessageAsync("publish", address, message);
+    }
+
+    /** @see EventBusBridge#sendAsync(String, String) */
+    public CompletableFuture<Void> publishAsync(String address, JsonObject message) {
+        return sendMessageAsync("publish", address, message);
+    }
+
+    /**
+     * Send a message and return the reply as a future.
+     * The future fails with a ReplyException if no reply arrives within timeout ms (0 waits forever) or the connection is lost,
+     * and with an IllegalStateException if the message cannot be sent.
+     */
+    public <T> CompletableFuture<EventBusMessage<T>> request(String address, String body, long timeout) {
+        return requestMessage(address, body, timeout);
+    }
+
+    /** @see EventBusBridge#request(String, String, long) */
+    public <T> CompletableFuture<EventBusMessage<T>> request(String address, JsonObject body, long timeout) {
+        return requestMessage(address, body, timeout);
+    }
+
+    /**
+     * @see EventBusBridge#request(String, String, long)
+     * @see EventBusBridge#send(String, Object)
+     */
+    public <T> CompletableFuture<EventBusMessage<T>> request(String address, Object body, long timeout) {
+        return requestMessage(address, body, timeout);
+    }
+
+    /**
+     * Send one request per body and collect the replies, in the order of the bodies.
+     * All requests are sent right away, without waiting for replies in between.
+     * The future fails as soon as one of the requests fails.
+     * @param bodies any bodies send(String, Object) accepts
+     */
+    public <T> CompletableFuture<List<EventBusMessage<T>>> requestAll(String address, List<?> bodies, long timeout) {
+        CompletableFuture<List<EventBusMessage<T>>> all = new CompletableFuture<>();
+        if (bodies.isEmpty()) {
+            all.complete(Collections.emptyList());
+            return all;
+        }
+        EventBusMessage<T>[] replies = new EventBusMessage[bodies.size()];
+        AtomicInteger remaining = new AtomicInteger(replies.length);
+        int i = 0;
+        for (Object body : bodies) {
+            int index = i++;
+            this.<T>requestMessage(address, body, timeout).whenComplete((reply, cause) -> {
+                if (cause != null) {
+                    all.completeExceptionally(cause);
+                } else {
+                    replies[index] = reply;
+                    if (remaining.decrementAndGet() == 0) {
+                        all.complete(Arrays.asList(replies));
+                    }
+                }
+            });
+        }
+        return all;
+    }
+
     public EventBusBridge registerHandler(String address, MessageHandler<?> messageHandler) {
         return registerHandlerInternal(address, messageHandler);
     }
@@ -257,11 +832,50 @@ public class EventBusBridge {
         return registerHandlerInternal(address, eventHandler);
     }
 
+    /**
+     * Register a handler that runs on the given executor instead of the websocket's event loop, e.g. for handlers that block.
+     * Messages are passed to the handler one at a time and in the order they were received.
+     * Any executor works, e.g. a fixed thread pool, or Executors.newVirtualThreadPerTaskExecutor() on Java 21.
+     * While 256 messages wait for the executor, the websocket stops reading until half of them are handled.
+     * Unregister it with the same handler instance.
+     */
+    public <T> EventBusBridge registerHandler(String address, MessageHandler<T> messageHandler, Executor executor) {
+        return registerHandlerInternal(address, new ExecutingHandler<>(messageHandler, executor));
+    }
+
+    /** @see EventBusBridge#registerHandler(String, MessageHandler, Executor) */
+    public <T> EventBusBridge registerHandler(String address, EventHandler<T> eventHandler, Executor executor) {
+        return registerHandlerInternal(address, new ExecutingHandler<>(eventHandler, executor));
+    }
+
+    /**
+     * A Reactive Streams publisher for the messages sent to an address or address pattern.
+     * Each subscriber registers its own handler and receives messages as it requests them.
+     * Up to 256 messages per subscriber are buffered; when a subscriber's buffer is full, the websocket stops reading
+     * until the subscriber catches up. Subscribers complete when the bridge is closed.
+     */
+    public <T> Publisher<EventBusMessage<T>> publisher(String address) {
+        return publisher(address, DEFAULT_PUBLISHER_BUFFER_SIZE);
+    }
+
+    /** @see EventBusBridge#publisher(String) */
+    public <T> Publisher<EventBusMessage<T>> publisher(String address, int bufferSize) {
+        return new AddressPublisher<>(this, address, bufferSize);
+    }
+
+    /**
+     * Register a handler for an address or an address pattern.
+     * Patterns use '*' for exactly one segment and a trailing '>' for one or more segments, e.g. <code>orders.*</code> or <code>metrics.eu.&gt;</code>.
+     * They need EventBusBridgeOptions.setAddressPatterns(true); otherwise every address is exact.
+     * The server only knows exact addresses, so a pattern handler receives messages for the addresses the bridge is registered for
+     * at the server, either through exact handlers or through subscribe.
+     */
     protected EventBusBridge registerHandlerInternal(String address, DefaultHandler<?> eventHandler) {
-        handlers.computeIfAbsent(address, key -> {
-            webSocket.write(Buffer.buffer(new JsonObject().put("type", "register").put("address", address).toString()));
-            return Collections.synchronizedList(new ArrayList<>());
-        }).add(eventHandler);
+        if (isPattern(address)) {
+            patternHandlers.add(address, eventHandler);
+        } else if (handlers.add(address, eventHandler)) {
+            acquireSubscription(address);
+        }
         return this;
     }
 
@@ -274,91 +888,881 @@ public class EventBusBridge {
     }
 
     protected EventBusBridge unregisterHandlerInternal(String address, DefaultHandler<?> eventHandler) {
-        List<DefaultHandler<?>> handlers = this.handlers.getOrDefault(address, Collections.emptyList());
-        handlers.remove(eventHandler);
-        if (handlers.isEmpty()) {
-            String unregisterMsg = new JsonObject().put("type","unregister").put("address", address).toString();
-            webSocket.write(Buffer.buffer(unregisterMsg));
+        if (isPattern(address)) {
+            patternHandlers.remove(address, eventHandler);
+        } else if (handlers.remove(address, eventHandler)) {
+            releaseSubscription(address);
         }
         return this;
     }
 
+    /**
+     * Register many handlers at once, e.g. at startup.
+     * The register frames for new addresses are written in a single task on the websocket's event loop instead of one task each.
+     * @return without a heartbeat probe address, a future that completes once the frames are written, which says nothing about whether
+     * the server accepted them. With a probe address, it completes once the reply to a probe sent after the frames arrives; the server
+     * handles the frames of a connection in order, so by then it has processed every registration. It fails with an IllegalStateException
+     * if the server rejects a frame before that, e.g. an address that is not permitted, or if the bridge is not open.
+     * While the bridge reconnects, the frames go out with the registrations after reconnecting, and the future waits for those.
+     */
+    public CompletableFuture<Void> registerHandlers(Map<String, ? extends DefaultHandler<?>> handlersByAddress) {
+        CompletableFuture<Void> rejected = rejectIfClosed();
+        if (rejected != null) {
+            return rejected;
+        }
+        List<String> added = new ArrayList<>();
+        for (Map.Entry<String, ? extends DefaultHandler<?>> entry : handlersByAddress.entrySet()) {
+            String address = entry.getKey();
+            DefaultHandler<?> handler = Objects.requireNonNull(entry.getValue());
+            if (isPattern(address)) {
+                patternHandlers.add(address, handler);
+            } else if (handlers.add(address, handler) && acquire(address)) {
+                added.add(address);
+            }
+        }
+        return writeSubscriptions("register", added);
+    }
+
+    /**
+     * Unregister many handlers at once. Unregister frames for addresses without handlers left are written in a single event loop task.
+     * @see EventBusBridge#registerHandlers(Map)
+     */
+    public CompletableFuture<Void> unregisterHandlers(Map<String, ? extends DefaultHandler<?>> handlersByAddress) {
+        CompletableFuture<Void> rejected = rejectIfClosed();
+        if (rejected != null) {
+            return rejected;
+        }
+        List<String> removed = new ArrayList<>();
+        for (Map.Entry<String, ? extends DefaultHandler<?>> entry : handlersByAddress.entrySet()) {
+            String address = entry.getKey();
+            if (isPattern(address)) {
+                patternHandlers.remove(address, entry.getValue());
+            } else if (handlers.remove(address, entry.getValue()) && release(address)) {
+                removed.add(address);
+            }
+        }
+        return writeSubscriptions("unregister", removed);
+    }
+
+    private CompletableFuture<Void> rejectIfClosed() {
+        try {
+            checkOpen();
+            return null;
+        } catch (IllegalStateException e) {
+            CompletableFuture<Void> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(e);
+            return rejected;
+        }
+    }
+
+    /**
+     * Write register or unregister frames for many addresses in one event loop task.
+     * Vert.x flushes every write made outside a read, so only frames written from a handler share a flush; otherwise each is flushed on its own.
+     */
+    private CompletableFuture<Void> writeSubscriptions(String type, List<String> addresses) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        if (addresses.isEmpty()) {
+            done.complete(null);
+            return done;
+        }
+        if (webSocket == null) {
+            awaitReconnect(done);
+            return done;
+        }
+        if (Vertx.currentContext() == context) {
+            writeSubscriptions(type, addresses, done);
+        } else {
+            context.runOnContext(v -> writeSubscriptions(type, addresses, done));
+        }
+        return done;
+    }
+
+    private void writeSubscriptions(String type, List<String> addresses, CompletableFuture<Void> done) {
+        WebSocket ws = webSocket;
+        if (ws == null) {
+            awaitReconnect(done);
+            return;
+        }
+        try {
+            for (String address : addresses) {
+                writeToSocket(ws, encoder.encode(type, address), null);
+            }
+            confirmSubscriptions(done);
+        } catch (IllegalStateException closed) {
+            done.completeExceptionally(closed);
+        }
+    }
+
+    /** Complete a batch of subscription frames that were written, after the probe reply if there is a probe address. Event loop only. */
+    private void confirmSubscriptions(CompletableFuture<Void> done) {
+        String probeAddress = bridgeOptions.getHeartbeatProbeAddress();
+        if (probeAddress == null) {
+            done.complete(null);
+            return;
+        }
+        pendingSubscriptions.add(done);
+        sendMessage("send", probeAddress, null, (ReplyHandler<Object>) result -> {
+            pendingSubscriptions.remove(done);
+            if (result.succeeded()) {
+                done.complete(null);
+            } else {
+                done.completeExceptionally(result.cause());
+            }
+        });
+    }
+
+    /**
+     * The connection dropped: the subscriptions are already recorded and go out with the registrations after reconnecting,
+     * so the batch completes with those.
+     */
+    private void awaitReconnect(CompletableFuture<Void> done) {
+        synchronized (resubscribing) {
+            if (!closed) {
+                resubscribing.add(done);
+                return;
+            }
+        }
+        done.completeExceptionally(new IllegalStateException("Event bus bridge is not open"));
+    }
+
+    /** The registrations were written after reconnecting. Event loop only. */
+    private void resubscribed() {
+        List<CompletableFuture<Void>> batches;
+        synchronized (resubscribing) {
+            batches = new ArrayList<>(resubscribing);
+            resubscribing.clear();
+        }
+        for (CompletableFuture<Void> done : batches) {
+            confirmSubscriptions(done);
+        }
+    }
+
+    private void failResubscribing() {
+        List<CompletableFuture<Void>> batches;
+        synchronized (resubscribing) {
+            batches = new ArrayList<>(resubscribing);
+            resubscribing.clear();
+        }
+        for (CompletableFuture<Void> done : batches) {
+            done.completeExceptionally(new IllegalStateException("Event bus bridge is not open"));
+        }
+    }
+
+    /**
+     * Receive the chunks of large messages to an address as they arrive, e.g. to write them to a file without holding the whole message.
+     * The data of all chunks of a message, concatenated, is the JSON encoded body; a binary body is a base64 string.
+     * Only messages that were sent in chunks reach chunk handlers. Message handlers of the same address still get the reassembled message.
+     * @see EventBusBridgeOptions#setChunkSize(int)
+     */
+    public EventBusBridge registerChunkHandler(String address, ChunkHandler chunkHandler) {
+        Objects.requireNonNull(chunkHandler);
+        if (isPattern(address)) {
+            throw new IllegalArgumentException("Chunk handlers need an exact address: " + address);
+        }
+        boolean[] added = new boolean[1];
+        chunkHandlers.compute(address, (key, current) -> {
+            Set<ChunkHandler> updated = current == null ? ConcurrentHashMap.newKeySet() : current;
+            added[0] = updated.add(chunkHandler);
+            return updated;
+        });
+        if (added[0]) {
+            acquireSubscription(address);
+        }
+        return this;
+    }
+
+    public EventBusBridge unregisterChunkHandler(String address, ChunkHandler chunkHandler) {
+        boolean[] removed = new boolean[1];
+        chunkHandlers.computeIfPresent(address, (key, current) -> {
+            removed[0] = current.remove(chunkHandler);
+            return current.isEmpty() ? null : current;
+        });
+        if (removed[0]) {
+            releaseSubscription(address);
+        }
+        return this;
+    }
+
+    /**
+     * Register at the server for messages to these addresses without adding a local handler.
+     * Use this together with pattern handlers, e.g. subscribe to every instrument and handle them all with one <code>orders.*</code> handler.
+     */
+    public EventBusBridge subscribe(String... addresses) {
+        for (String address : addresses) {
+            if (explicitSubscriptions.add(address)) {
+                acquireSubscription(address);
+            }
+        }
+        return this;
+    }
+
+    /** Undo subscribe. Addresses that still have local handlers stay registered at the server. */
+    public EventBusBridge unsubscribe(String... addresses) {
+        for (String address : addresses) {
+            if (explicitSubscriptions.remove(address)) {
+                releaseSubscription(address);
+            }
+        }
+        return this;
+    }
+
+    private void acquireSubscription(String address) {
+        if (acquire(address)) {
+            writeSubscription("register", address); // otherwise registered on reconnect
+        }
+    }
+
+    private void releaseSubscription(String address) {
+        if (release(address)) {
+            writeSubscription("unregister", address);
+        }
+    }
+
+    private void writeSubscription(String type, String address) {
+        WebSocket ws = webSocket;
+        if (ws != null) {
+            writeToSocket(ws, encoder.encode(type, address), null);
+        }
+    }
+
+    /** @return true if the address must be registered at the server, i.e. it is neither registered nor lingering */
+    private boolean acquire(String address) {
+        synchronized (lingering) {
+            if (!subscriptions.acquire(address)) {
+                return false;
+            }
+            Long timerID = lingering.remove(address);
+            if (timerID == null) {
+                return true;
+            }
+            if (timerID >= 0) {
+                vertx.cancelTimer(timerID);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * With an unregister grace period, the address lingers instead and is unregistered once the period is over.
+     * Without one, an address released on the event loop lingers until the end of the current task, so a handler that unregisters
+     * itself and registers again right away keeps the registration; messages the server already sent to it are not lost.
+     * @return true if the address must be unregistered at the server right away
+     */
+    private boolean release(String address) {
+        long gracePeriod = bridgeOptions.getUnregisterGracePeriod();
+        boolean onEventLoop = Vertx.currentContext() == context;
+        if (gracePeriod == 0 && !onEventLoop) {
+            return subscriptions.release(address);
+        }
+        synchronized (lingering) {
+            if (subscriptions.release(address) && webSocket != null) {
+                if (gracePeriod > 0) {
+                    lingering.put(address, vertx.setTimer(gracePeriod, id -> unregisterLingering(address, id)));
+                } else {
+                    long id = --lingerTasks;
+                    lingering.put(address, id);
+                    context.runOnContext(v -> unregisterLingering(address, id));
+                }
+            }
+            return false;
+        }
+    }
+
+    private void unregisterLingering(String address, long timerID) {
+        synchronized (lingering) {
+            if (lingering.remove(address, timerID)) {
+                try {
+                    writeSubscription("unregister", address);
+                } catch (IllegalStateException closed) {
+                    // the close handler takes over
+                }
+            }
+        }
+    }
+
+    private void clearLingering() {
+        synchronized (lingering) {
+            for (long timerID : lingering.values()) {
+                if (timerID >= 0) {
+                    vertx.cancelTimer(timerID);
+                }
+            }
+            lingering.clear();
+        }
+    }
+
     public void close() {
-        if (webSocket != null) {
-            webSocket.close();
+        closed = true;
+        long timerID = reconnectTimerID;
+        if (timerID != 0) {
+            vertx.cancelTimer(timerID);
+            reconnectTimerID = 0;
+        }
+        WebSocket ws = webSocket;
+        if (ws != null) {
+            ws.close();
             webSocket = null;
+        } else if (opened || timerID != 0) {
+            webSocketClosed(); // in between reconnects, nothing else will clean up
         }
     }
 
     private void sendMessage(String sendOrPublish, String address, Object message, DefaultHandler<?> replyHandler) {
-        JsonObject msg = new JsonObject().put("type", sendOrPublish).put("address", address).put("body", message);
+        sendMessage(sendOrPublish, address, message, replyHandler, bridgeOptions.getReplyTimeout());
+    }
+
+    private void sendMessage(String sendOrPublish, String address, Object message, DefaultHandler<?> replyHandler, long timeout) {
+        sendMessage(sendOrPublish, address, message, replyHandler, timeout, null);
+    }
+
+    private void sendMessage(String sendOrPublish, String address, Object message, DefaultHandler<?> replyHandler, long timeout, MultiMap headers) {
+        sendMessage(sendOrPublish, address, message, replyHandler, timeout, headers, address);
+    }
+
+    /** @param metricsAddress the address to report the message under */
+    private void sendMessage(String sendOrPublish, String address, Object message, DefaultHandler<?> replyHandler, long timeout,
+                             MultiMap headers, String metricsAddress) {
+        String replyAddress = null;
         if (replyHandler != null) {
-            String replyAddress = UUID.randomUUID().toString();
-            replyHandlers.put(replyAddress, replyHandler);
-            msg.put("replyAddress", replyAddress);
+            ReplyHandlers.PendingReply pending = replyHandlers.add(address, replyHandler);
+            replyAddress = replyHandlers.address(pending.id);
+            if (timeout > 0) {
+                scheduleReplyTimeout(pending, timeout);
+            }
+        }
+        try {
+            writeMessage(sendOrPublish, address, encode(sendOrPublish, address, message, replyAddress, headers, metricsAddress), replyAddress, headers, null);
+        } catch (RuntimeException e) {
+            if (replyAddress != null) {
+                forgetReply(replyHandlers.idOf(replyAddress));
+            }
+            throw e;
+        }
+    }
+
+    private void forgetReply(long id) {
+        ReplyHandlers.PendingReply pending = replyHandlers.remove(id);
+        if (pending != null) {
+            replyTimeouts.cancel(pending);
+        }
+    }
+
+    private <T> CompletableFuture<EventBusMessage<T>> requestMessage(String address, Object body, long timeout) {
+        CompletableFuture<EventBusMessage<T>> reply = new CompletableFuture<>();
+        ReplyHandler<T> replyHandler = result -> {
+            if (result.succeeded()) {
+                reply.complete(result.result());
+            } else {
+                reply.completeExceptionally(result.cause());
+            }
+        };
+        try {
+            checkOpen();
+            sendMessage("send", address, body, replyHandler, timeout);
+        } catch (RuntimeException e) {
+            reply.completeExceptionally(e);
+        }
+        return reply;
+    }
+
+    private CompletableFuture<Void> sendMessageAsync(String sendOrPublish, String address, Object message) {
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        try {
+            writeMessage(sendOrPublish, address, encode(sendOrPublish, address, message, null, null, address), null, null, written);
+        } catch (RuntimeException e) {
+            written.completeExceptionally(e);
+        }
+        return written;
+    }
+
+    /**
+     * Write a message frame, split into chunks if it is published and larger than the chunk size.
+     * Every chunk carries a slice of the JSON encoded body; the reply address and headers go with the last one,
+     * so the reassembled message looks like the original.
+     * Sends, and with them replies, are written whole: the server hands every frame of a send to the next consumer in turn,
+     * and its reply addresses only take one message.
+     */
+    private void writeMessage(String sendOrPublish, String address, Buffer frame, String replyAddress, MultiMap headers, CompletableFuture<Void> written) {
+        int chunkSize = bridgeOptions.getChunkSize();
+        if (chunkSize == 0 || frame.length() <= chunkSize || !"publish".equals(sendOrPublish)) {
+            write(frame, written);
+            return;
+        }
+        FrameDecoder.Frame envelope = FrameDecoder.decode(frame, any -> true);
+        ByteBuf body = frame.getByteBuf().slice(envelope.bodyStart, envelope.bodyEnd - envelope.bodyStart);
+        String chunkId = chunkIdPrefix + chunkIds.incrementAndGet();
+        int overhead = frame.length() - body.readableBytes() + chunkId.length() + FrameEncoder.CHUNK_OVERHEAD;
+        int sliceSize = (chunkSize - overhead) / 4 * 3; // base64 takes 4 bytes for every 3
+        if (sliceSize <= 0) {
+            throw new IllegalArgumentException("Chunk size " + chunkSize + " leaves no room for the body of a message to " + address);
+        }
+        int length = body.readableBytes();
+        int count = (length + sliceSize - 1) / sliceSize;
+        CompletableFuture<?>[] chunksWritten = new CompletableFuture<?>[written == null ? 0 : count];
+        for (int i = 0; i < count; i++) {
+            int start = i * sliceSize;
+            boolean last = i == count - 1;
+            Buffer chunk = encoder.encodeChunk(sendOrPublish, address, chunkId, i, count, body.slice(start, Math.min(sliceSize, length - start)),
+                    last ? replyAddress : null, last ? headers : null);
+            CompletableFuture<Void> chunkWritten = written == null ? null : new CompletableFuture<>();
+            if (written != null) {
+                chunksWritten[i] = chunkWritten;
+            }
+            write(chunk, chunkWritten);
+        }
+        if (written != null) {
+            CompletableFuture.allOf(chunksWritten).whenComplete((v, cause) -> {
+                if (cause == null) {
+                    written.complete(null);
+                } else {
+                    written.completeExceptionally(cause instanceof CompletionException ? cause.getCause() : cause);
+                }
+            });
+        }
+    }
+
+    private Buffer encode(String sendOrPublish, String address, Object message, String replyAddress, MultiMap headers, String metricsAddress) {
+        if (!metricsEnabled) {
+            return encodeFrame(sendOrPublish, address, message, replyAddress, headers, metricsAddress);
+        }
+        long start = System.nanoTime();
+        Buffer frame = encodeFrame(sendOrPublish, address, message, replyAddress, headers, metricsAddress);
+        metrics.encoded(System.nanoTime() - start);
+        metrics.messageSent(metricsAddress, frame.length());
+        return frame;
+    }
+
+    /** Replies are reported under {@link BridgeMetrics#REPLIES} and skip the encoder's prefix cache. */
+    private Buffer encodeFrame(String sendOrPublish, String address, Object message, String replyAddress, MultiMap headers, String metricsAddress) {
+        if (BridgeMetrics.REPLIES.equals(metricsAddress)) {
+            return encoder.encodeReply(address, message, replyAddress, headers);
+        }
+        return encoder.encode(sendOrPublish, address, message, replyAddress, headers);
+    }
+
+    /** Reply timeouts share one timing wheel. Its timer only runs while there are timeouts in the wheel. */
+    private void scheduleReplyTimeout(ReplyHandlers.PendingReply pending, long timeout) {
+        synchronized (replyTimeouts) {
+            replyTimeouts.schedule(pending, timeout);
+            if (replyTimerID == 0) {
+                replyTimerID = vertx.setPeriodic(replyTimeouts.tickMillis(), id -> expireReplies());
+            }
+        }
+    }
+
+    private void expireReplies() {
+        List<TimingWheel.Timeout> expired;
+        synchronized (replyTimeouts) {
+            expired = replyTimeouts.advance();
+            if (replyTimeouts.isEmpty() && replyTimerID != 0) {
+                vertx.cancelTimer(replyTimerID);
+                replyTimerID = 0;
+            }
+        }
+        for (TimingWheel.Timeout timeout : expired) {
+            ReplyHandlers.PendingReply pending = (ReplyHandlers.PendingReply) timeout;
+            if (replyHandlers.remove(pending.id) != null) {
+                pending.handler.fail(new ReplyException(ReplyFailure.TIMEOUT, "Timed out waiting for reply from " + pending.address), this);
+            }
+        }
+    }
+
+    private void failPendingReplies(Throwable cause) {
+        for (ReplyHandlers.PendingReply pending : replyHandlers.removeAll()) {
+            replyTimeouts.cancel(pending);
+            pending.handler.fail(cause, this);
         }
-        webSocket.write(Buffer.buffer(msg.toString()));
+        synchronized (replyTimeouts) {
+            if (replyTimerID != 0) {
+                vertx.cancelTimer(replyTimerID);
+                replyTimerID = 0;
+            }
+        }
+    }
+
+    /** Encode a send or publish envelope. Kept separate from sendMessage so it can be benchmarked on its own. */
+    Buffer encodeMessage(String sendOrPublish, String address, Object message, String replyAddress) {
+        return encoder.encode(sendOrPublish, address, message, replyAddress);
     }
 
     protected void bufferReceived(Buffer buffer) {
-        //System.out.println("Buffer Received");
-        //System.out.println(buffer.toString());
-        JsonObject msg = new JsonObject(buffer.toString());
+        long start = metricsEnabled ? System.nanoTime() : 0;
+        if (!bridgeOptions.isStreamingDecode()) {
+            JsonObject json = new JsonObject(buffer.toString());
+            if (metricsEnabled) {
+                metrics.decoded(System.nanoTime() - start);
+            }
+            jsonReceived(json, buffer.length());
+            return;
+        }
+        FrameDecoder.Frame frame = FrameDecoder.decode(buffer, this::hasHandlers);
+        if (frame == null) {
+            return; // nobody is listening on this address
+        }
+        if (metricsEnabled) {
+            metrics.decoded(System.nanoTime() - start);
+        }
+        if ("err".equals(frame.type)) {
+            errorReceived(new JsonObject(buffer.toString()));
+            return;
+        }
+        if (metricsEnabled) {
+            metrics.messageReceived(metricsAddress(frame.address), buffer.length());
+        }
+        EventBusMessage<?> message = new EventBusMessage(frame);
+        if (frame.hasBody() && FrameDecoder.startsWith(buffer, frame.bodyStart, FrameEncoder.CHUNK_PREFIX)
+                && isChunking(frame.address) && chunkReceived(message)) {
+            return;
+        }
+        received(message);
+    }
+
+    /** Non-streaming decode: the whole frame has already been parsed. */
+    private void jsonReceived(JsonObject msg, int bytes) {
         String type = msg.getString("type");
         if ("err".equals(type)) {
-            // TODO invoke error handler
-            System.err.println("Error message from the event bus bridge:" + msg.toString());
+            errorReceived(msg);
             return;
         }
         String address = msg.getString("address");
+        if (address == null || !hasHandlers(address)) {
+            return; // nobody is listening on this address
+        }
+        if (metricsEnabled) {
+            metrics.messageReceived(metricsAddress(address), bytes);
+        }
+        EventBusMessage<?> message = new EventBusMessage(msg);
+        if (isChunking(address) && chunkReceived(message)) {
+            return;
+        }
+        received(message);
+    }
+
+    /**
+     * The server's errors name no address, but it handles the frames of a connection in order.
+     * An error that arrives while a batch of registrations waits for its probe reply rejects a frame written before the probe.
+     */
+    private void errorReceived(JsonObject error) {
+        // TODO invoke error handler
+        System.err.println("Error message from the event bus bridge:" + error.toString());
+        if (metricsEnabled) {
+            metrics.errorReceived();
+        }
+        if (pendingSubscriptions.isEmpty()) {
+            return;
+        }
+        IllegalStateException rejected = new IllegalStateException("The server rejected a frame: " + error.getValue("body"));
+        List<CompletableFuture<Void>> batches = new ArrayList<>(pendingSubscriptions);
+        pendingSubscriptions.clear();
+        for (CompletableFuture<Void> batch : batches) {
+            batch.completeExceptionally(rejected);
+        }
+    }
+
+    /** Chunks are only reassembled if this bridge chunks its own messages or has a chunk handler for the address. */
+    private boolean isChunking(String address) {
+        return bridgeOptions.getChunkSize() > 0 || chunkHandlers.containsKey(address);
+    }
+
+    /** True if the body has exactly the shape FrameEncoder.encodeChunk writes. */
+    static boolean isChunk(Object body) {
+        if (!(body instanceof JsonArray)) {
+            return false;
+        }
+        JsonArray chunk = (JsonArray) body;
+        if (chunk.size() != 5 || !FrameEncoder.CHUNK_MARKER.equals(chunk.getValue(0))) {
+            return false;
+        }
+        Object index = chunk.getValue(2);
+        Object count = chunk.getValue(3);
+        return chunk.getValue(1) instanceof String && index instanceof Integer && count instanceof Integer && chunk.getValue(4) instanceof String
+                && (Integer) index >= 0 && (Integer) index < (Integer) count;
+    }
+
+    /**
+     * Pass a chunk to the chunk handlers of its address, and reassemble the message if anyone else listens.
+     * The last chunk's envelope becomes the envelope of the reassembled message.
+     * @return false if the message is not a chunk after all and has to be delivered as it is
+     */
+    private boolean chunkReceived(EventBusMessage<?> message) {
+        if (!isChunk(message.body())) {
+            return false;
+        }
+        JsonArray chunk = (JsonArray) message.body();
+        String chunkId = chunk.getString(1);
+        int index = chunk.getInteger(2);
+        int count = chunk.getInteger(3);
+        Buffer data;
+        try {
+            data = Buffer.buffer(Unpooled.wrappedBuffer(Base64.getDecoder().decode(chunk.getString(4))));
+        } catch (IllegalArgumentException e) {
+            return false; // not base64
+        }
+        Set<ChunkHandler> streaming = chunkHandlers.get(message.address);
+        if (streaming != null) {
+            for (ChunkHandler handler : streaming) {
+                handler.handle(chunkId, index, count, data);
+            }
+        }
+        if (!hasMessageHandlers(message.address)) {
+            return true;
+        }
+        Buffer body = chunks.add(chunkId, index, count, data);
+        if (body != null) {
+            message.rawBody = body;
+            message.body = null;
+            message.bodyDecoded = false;
+            received(message);
+        }
+        return true;
+    }
+
+    /**
+     * Dispatch right away or, if the inbound queue is enabled, queue the message and dispatch it in a later event loop turn.
+     * The websocket is paused while the queue is above its high watermark, so TCP backpressure reaches the server.
+     */
+    private void received(EventBusMessage<?> message) {
+        int highWatermark = bridgeOptions.getInboundQueueSize();
+        if (highWatermark == 0) {
+            dispatch(message.address, message);
+            return;
+        }
+        inbound.add(message);
+        if (inbound.size() >= highWatermark && !paused) {
+            paused = true;
+            pauseReading(inbound);
+        }
+        if (!inboundScheduled) {
+            inboundScheduled = true;
+            context.runOnContext(v -> dispatchInbound());
+        }
+    }
 
-        EventBusMessage result = new EventBusMessage(msg);
-        for (DefaultHandler<?> h : handlers.getOrDefault(address, Collections.emptyList())) {
-            result.deliverTo(h);
+    /** Dispatch a batch of queued messages, then yield to other work on the event loop. */
+    private void dispatchInbound() {
+        inboundScheduled = false;
+        EventBusMessage<?> message;
+        for (int i = 0; i < INBOUND_BATCH_SIZE && (message = inbound.poll()) != null; i++) {
+            dispatch(message.address, message);
         }
-        if (replyHandlers.containsKey(address)) {
-            DefaultHandler<?> replyHandler = replyHandlers.remove(address);
-            result.deliverTo(replyHandler);
+        int lowWatermark = bridgeOptions.getInboundLowWatermark() > 0 ? bridgeOptions.getInboundLowWatermark() : bridgeOptions.getInboundQueueSize() / 2;
+        if (paused && inbound.size() <= lowWatermark) {
+            paused = false;
+            resumeReading(inbound);
         }
+        if (!inbound.isEmpty()) {
+            inboundScheduled = true;
+            context.runOnContext(v -> dispatchInbound());
+        }
+    }
+
+    /** Stop reading from the websocket until every pauser has resumed. */
+    void pauseReading(Object pauser) {
+        synchronized (readPausers) {
+            if (readPausers.add(pauser) && readPausers.size() == 1 && webSocket != null) {
+                webSocket.pause();
+            }
+        }
+    }
+
+    void resumeReading(Object pauser) {
+        synchronized (readPausers) {
+            if (readPausers.remove(pauser) && readPausers.isEmpty() && webSocket != null) {
+                webSocket.resume();
+            }
+        }
+    }
+
+    boolean hasHandlers(String address) {
+        return hasMessageHandlers(address) || chunkHandlers.containsKey(address);
+    }
+
+    private boolean hasMessageHandlers(String address) {
+        long replyId = replyHandlers.idOf(address);
+        return replyId > 0 ? replyHandlers.contains(replyId) : handlers.contains(address) || patternHandlers.matches(address);
+    }
+
+    private String metricsAddress(String address) {
+        return address != null && replyHandlers.idOf(address) > 0 ? BridgeMetrics.REPLIES : address;
+    }
+
+    private void dispatch(String address, EventBusMessage result) {
+        long replyId = replyHandlers.idOf(address);
+        if (replyId > 0) {
+            ReplyHandlers.PendingReply pending = replyHandlers.remove(replyId);
+            if (pending != null) {
+                replyTimeouts.cancel(pending);
+                recordRoundTrip(System.nanoTime() - pending.sentNanos);
+                deliver(result, pending.handler, address, BridgeMetrics.REPLIES);
+            }
+            return;
+        }
+        for (DefaultHandler<?> h : handlers.get(address)) {
+            deliver(result, h, address, address);
+        }
+        patternHandlers.forEachMatch(address, (pattern, h) -> deliver(result, h, pattern, pattern));
+    }
+
+    private void deliver(EventBusMessage result, DefaultHandler<?> handler, String registeredAddress, String metricsAddress) {
+        if (!metricsEnabled) {
+            result.deliverTo(handler, registeredAddress);
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            result.deliverTo(handler, registeredAddress);
+        } finally {
+            metrics.handlerExecuted(metricsAddress, System.nanoTime() - start);
+        }
+    }
+
+    /** True if the address is a pattern and patterns are enabled. */
+    boolean isPattern(String address) {
+        return bridgeOptions.isAddressPatterns() && AddressTrie.isPattern(address);
+    }
+
+    /** Number of reply handlers waiting for a reply. */
+    public int pendingReplies() {
+        return replyHandlers.size();
+    }
+
+    /**
+     * Number of messages waiting in the outbound queue or handed over by other threads and not yet written,
+     * see EventBusBridgeOptions.setOutboundQueueSize.
+     */
+    public int outboundQueueDepth() {
+        return outbound.size() + handOffSize.get();
     }
 
     public boolean isOpen() {
         return webSocket != null;
     }
 
+    /**
+     * A message received over the bridge.
+     * The body is decoded lazily on the first call to body(). Use rawBody() to forward the body without decoding it.
+     */
     public class EventBusMessage<T> implements Message<T> {
         String address;
         String replyAddress;
         T body;
+        boolean bodyDecoded;
+        Buffer rawBody; // JSON encoded body, a slice of the received frame
+        JsonObject json; // set if the whole frame was parsed up front
+        MultiMap headers;
+        Buffer rawHeaders; // JSON encoded headers, a slice of the received frame
         DefaultHandler<T> handler;
+        String registeredAddress; // address or pattern the current handler was registered with
 
         EventBusMessage(JsonObject json) {
             address = json.getString("address");
             replyAddress = json.getString("replyAddress", null);
-            body = (T)json.getValue("body");
+            this.json = json;
+        }
+
+        EventBusMessage(FrameDecoder.Frame frame) {
+            address = frame.address;
+            replyAddress = frame.replyAddress;
+            if (frame.hasBody()) {
+                rawBody = frame.buffer.slice(frame.bodyStart, frame.bodyEnd);
+            } else {
+                bodyDecoded = true;
+            }
+            if (frame.hasHeaders()) {
+                rawHeaders = frame.buffer.slice(frame.headersStart, frame.headersEnd);
+            }
         }
 
         EventBusMessage(Message<T> result) {
             address = result.address();
             replyAddress = result.replyAddress();
-            body  = result.body();
+            if (result instanceof EventBusMessage) {
+                EventBusMessage<T> other = (EventBusMessage<T>) result;
+                body = other.body;
+                bodyDecoded = other.bodyDecoded;
+                rawBody = other.rawBody;
+                json = other.json;
+                headers = other.headers;
+                rawHeaders = other.rawHeaders;
+            } else {
+                body = result.body();
+                bodyDecoded = true;
+                headers = result.headers();
+            }
         }
 
         @Override
         public String address() {
-            return null;
+            return address;
         }
 
+        /** The headers of the message, decoded on the first call. Empty if the message has none. */
         @Override
         public MultiMap headers() {
-            throw new UnsupportedOperationException("No headers supported");
+            if (headers == null) {
+                if (rawHeaders != null) {
+                    headers = FrameDecoder.decodeHeaders(rawHeaders, 0, rawHeaders.length());
+                } else if (json != null) {
+                    headers = FrameDecoder.toHeaders(json.getJsonObject("headers"));
+                } else {
+                    headers = new CaseInsensitiveHeaders();
+                }
+            }
+            return headers;
         }
 
         @Override
         public T body() {
+            if (!bodyDecoded) {
+                if (rawBody != null) {
+                    body = (T) FrameDecoder.decodeValue(rawBody, 0, rawBody.length());
+                } else if (json != null) {
+                    body = (T) json.getValue("body");
+                }
+                bodyDecoded = true;
+            }
             return body;
         }
 
+        /**
+         * The JSON encoded body as received, without decoding it. String bodies include their quotes.
+         * @return the raw body or null if the message has no body
+         */
+        public Buffer rawBody() {
+            if (rawBody == null && body() != null) {
+                rawBody = Buffer.buffer(Json.encode(body));
+            }
+            return rawBody;
+        }
+
+        /**
+         * The body of a message sent as binary data, i.e. as a base64 encoded string.
+         * Decoded straight from the received frame, without creating a String first.
+         * @return the decoded body or null if the message has no body
+         */
+        public Buffer binaryBody() {
+            Buffer raw = rawBody();
+            if (raw == null) {
+                return null;
+            }
+            int length = raw.length();
+            if (length >= 2 && raw.getByte(0) == '"' && raw.getByte(length - 1) == '"') {
+                ByteBuffer base64 = raw.getByteBuf().nioBuffer(1, length - 2);
+                boolean escaped = false;
+                for (int i = base64.position(); i < base64.limit() && !escaped; i++) {
+                    escaped = base64.get(i) == '\\';
+                }
+                if (!escaped) {
+                    return Buffer.buffer(Unpooled.wrappedBuffer(Base64.getDecoder().decode(base64)));
+                }
+            }
+            Object decoded = body();
+            if (!(decoded instanceof String)) {
+                throw new DecodeException("Body is not a base64 string");
+            }
+            return Buffer.buffer(Base64.getDecoder().decode((String) decoded));
+        }
+
         @Override
         public String replyAddress() {
             return replyAddress;
@@ -381,33 +1785,21 @@ public class EventBusBridge {
 
         @Override
         public <R> void reply(Object message, DeliveryOptions deliveryOptions, Handler<AsyncResult<Message<R>>> replyHandler) {
-            if (this.replyAddress != null) {
-                EventBusBridge.this.send(replyAddress, message.toString(), (result,eb) -> {
-                    if (replyHandler != null) {
-                        replyHandler.handle(new AsyncResult<Message<R>>() {
-                            @Override
-                            public Message<R> result() {
-                            return new EventBusMessage(result);
-                        }
-
-                            @Override
-                            public Throwable cause() {
-                            return null;
-                        }
-
-                            @Override
-                            public boolean succeeded() {
-                            return true;
-                        }
-
-                            @Override
-                            public boolean failed() {
-                            return false;
-                        }
-                        });
-                    }
-                });
+            if (this.replyAddress == null) {
+                return;
+            }
+            checkOpen();
+            if (replyHandler == null) {
+                sendMessage("send", replyAddress, message, null, 0, deliveryOptions.getHeaders(), BridgeMetrics.REPLIES);
+                return;
             }
+            sendMessage("send", replyAddress, message, (ReplyHandler<R>) result -> {
+                if (result.succeeded()) {
+                    replyHandler.handle(Future.<Message<R>>succeededFuture(result.result()));
+                } else {
+                    replyHandler.handle(Future.failedFuture(result.cause()));
+                }
+            }, deliveryOptions.getSendTimeout(), deliveryOptions.getHeaders(), BridgeMetrics.REPLIES);
         }
 
         @Override
@@ -417,12 +1809,13 @@ public class EventBusBridge {
 
         public void unregister() {
             if (handler != null) {
-                handler.unregister(address, EventBusBridge.this);
+                handler.unregister(registeredAddress, EventBusBridge.this);
             }
         }
 
-        private void deliverTo(DefaultHandler<T> handler) {
+        void deliverTo(DefaultHandler<T> handler, String registeredAddress) {
             this.handler = handler; // give handler a chance to un-register
+            this.registeredAddress = registeredAddress;
             handler.invoke(this, EventBusBridge.this);
         }
 
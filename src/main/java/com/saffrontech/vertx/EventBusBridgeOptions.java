@@ -0,0 +1,283 @@
+package com.saffrontech.vertx;
+
+import io.vertx.core.eventbus.DeliveryOptions;
+
+import java.util.Objects;
+
+/**
+ * Options that control how an EventBusBridge encodes, decodes and dispatches messages.
+ * Connection level settings (host, port, SSL, frame size) stay in HttpClientOptions.
+ */
+public class EventBusBridgeOptions {
+    public static final boolean DEFAULT_STREAMING_DECODE = true;
+    public static final long DEFAULT_REPLY_TIMEOUT = DeliveryOptions.DEFAULT_TIMEOUT;
+    public static final boolean DEFAULT_RECONNECT = false;
+    public static final long DEFAULT_RECONNECT_INITIAL_DELAY = 1000;
+    public static final long DEFAULT_RECONNECT_MAX_DELAY = 60000;
+    public static final int DEFAULT_RECONNECT_BUFFER_SIZE = 1000;
+    public static final int DEFAULT_OUTBOUND_QUEUE_SIZE = 0;
+    public static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.FAIL;
+    public static final int DEFAULT_INBOUND_QUEUE_SIZE = 0;
+    public static final int DEFAULT_INBOUND_LOW_WATERMARK = 0;
+    public static final long DEFAULT_HEARTBEAT_INTERVAL = 5000;
+    public static final int DEFAULT_CHUNK_SIZE = 0;
+    public static final int DEFAULT_MAX_REASSEMBLY_SIZE = 16 * 1024 * 1024;
+    public static final long DEFAULT_UNREGISTER_GRACE_PERIOD = 0;
+    public static final boolean DEFAULT_ADDRESS_PATTERNS = false;
+
+    private boolean streamingDecode = DEFAULT_STREAMING_DECODE;
+    private long replyTimeout = DEFAULT_REPLY_TIMEOUT;
+    private boolean reconnect = DEFAULT_RECONNECT;
+    private long reconnectInitialDelay = DEFAULT_RECONNECT_INITIAL_DELAY;
+    private long reconnectMaxDelay = DEFAULT_RECONNECT_MAX_DELAY;
+    private int reconnectBufferSize = DEFAULT_RECONNECT_BUFFER_SIZE;
+    private int outboundQueueSize = DEFAULT_OUTBOUND_QUEUE_SIZE;
+    private OverflowPolicy overflowPolicy = DEFAULT_OVERFLOW_POLICY;
+    private int inboundQueueSize = DEFAULT_INBOUND_QUEUE_SIZE;
+    private int inboundLowWatermark = DEFAULT_INBOUND_LOW_WATERMARK;
+    private long heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+    private String heartbeatProbeAddress;
+    private BridgeMetrics metrics = BridgeMetrics.NONE;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int maxReassemblySize = DEFAULT_MAX_REASSEMBLY_SIZE;
+    private long unregisterGracePeriod = DEFAULT_UNREGISTER_GRACE_PERIOD;
+    private boolean addressPatterns = DEFAULT_ADDRESS_PATTERNS;
+
+    public EventBusBridgeOptions() {
+    }
+
+    public EventBusBridgeOptions(EventBusBridgeOptions other) {
+        this.streamingDecode = other.streamingDecode;
+        this.replyTimeout = other.replyTimeout;
+        this.reconnect = other.reconnect;
+        this.reconnectInitialDelay = other.reconnectInitialDelay;
+        this.reconnectMaxDelay = other.reconnectMaxDelay;
+        this.reconnectBufferSize = other.reconnectBufferSize;
+        this.outboundQueueSize = other.outboundQueueSize;
+        this.overflowPolicy = other.overflowPolicy;
+        this.inboundQueueSize = other.inboundQueueSize;
+        this.inboundLowWatermark = other.inboundLowWatermark;
+        this.heartbeatInterval = other.heartbeatInterval;
+        this.heartbeatProbeAddress = other.heartbeatProbeAddress;
+        this.metrics = other.metrics;
+        this.chunkSize = other.chunkSize;
+        this.maxReassemblySize = other.maxReassemblySize;
+        this.unregisterGracePeriod = other.unregisterGracePeriod;
+        this.addressPatterns = other.addressPatterns;
+    }
+
+    public boolean isStreamingDecode() {
+        return streamingDecode;
+    }
+
+    /**
+     * If true (the default), inbound frames are scanned for type, address and replyAddress directly from the frame bytes
+     * and frames for addresses without a local handler are dropped without parsing the body.
+     * If false, every frame is parsed into a JsonObject first.
+     */
+    public EventBusBridgeOptions setStreamingDecode(boolean streamingDecode) {
+        this.streamingDecode = streamingDecode;
+        return this;
+    }
+
+    public long getReplyTimeout() {
+        return replyTimeout;
+    }
+
+    /**
+     * Time in ms to wait for a reply to a message sent with a reply handler, unless DeliveryOptions are given for the send.
+     * Afterwards the reply handler is removed and its fail method is called. Use 0 to wait forever.
+     */
+    public EventBusBridgeOptions setReplyTimeout(long replyTimeout) {
+        this.replyTimeout = replyTimeout;
+        return this;
+    }
+
+    public boolean isReconnect() {
+        return reconnect;
+    }
+
+    /**
+     * If true, the bridge reconnects when the connection drops, registers all addresses again and sends the messages buffered in between.
+     * Replies to requests sent over the lost connection fail. Defaults to false.
+     */
+    public EventBusBridgeOptions setReconnect(boolean reconnect) {
+        this.reconnect = reconnect;
+        return this;
+    }
+
+    public long getReconnectInitialDelay() {
+        return reconnectInitialDelay;
+    }
+
+    /** Delay in ms before the first reconnect attempt. It doubles with every failed attempt and is randomized by up to half. */
+    public EventBusBridgeOptions setReconnectInitialDelay(long reconnectInitialDelay) {
+        this.reconnectInitialDelay = reconnectInitialDelay;
+        return this;
+    }
+
+    public long getReconnectMaxDelay() {
+        return reconnectMaxDelay;
+    }
+
+    /** Upper bound in ms for the delay between reconnect attempts. */
+    public EventBusBridgeOptions setReconnectMaxDelay(long reconnectMaxDelay) {
+        this.reconnectMaxDelay = reconnectMaxDelay;
+        return this;
+    }
+
+    public int getReconnectBufferSize() {
+        return reconnectBufferSize;
+    }
+
+    /** Maximum number of messages buffered while reconnecting. Sending more throws an IllegalStateException. */
+    public EventBusBridgeOptions setReconnectBufferSize(int reconnectBufferSize) {
+        this.reconnectBufferSize = reconnectBufferSize;
+        return this;
+    }
+
+    public int getOutboundQueueSize() {
+        return outboundQueueSize;
+    }
+
+    /**
+     * Maximum number of messages held back while the websocket's write queue is full. When the queue is full, the overflow policy applies.
+     * Messages sent from other threads wait for the websocket's event loop first; once this many are waiting there, further ones
+     * go through the outbound queue as well, so at most twice this many messages are held back.
+     * 0 (the default) disables the queue: messages are always written to the websocket, which buffers them without limit.
+     */
+    public EventBusBridgeOptions setOutboundQueueSize(int outboundQueueSize) {
+        this.outboundQueueSize = outboundQueueSize;
+        return this;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /** What to do with a message when the outbound queue is full. Defaults to FAIL. */
+    public EventBusBridgeOptions setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = Objects.requireNonNull(overflowPolicy);
+        return this;
+    }
+
+    public int getInboundQueueSize() {
+        return inboundQueueSize;
+    }
+
+    /**
+     * If greater than 0, received messages are queued and dispatched in batches, and the websocket stops reading
+     * while this many messages are waiting. Frames already in flight still arrive, so the queue can briefly exceed this size.
+     * 0 (the default) dispatches every message as soon as it is received.
+     */
+    public EventBusBridgeOptions setInboundQueueSize(int inboundQueueSize) {
+        this.inboundQueueSize = inboundQueueSize;
+        return this;
+    }
+
+    public int getInboundLowWatermark() {
+        return inboundLowWatermark;
+    }
+
+    /** The websocket resumes reading once the inbound queue is down to this many messages. 0 (the default) means half the inbound queue size. */
+    public EventBusBridgeOptions setInboundLowWatermark(int inboundLowWatermark) {
+        this.inboundLowWatermark = inboundLowWatermark;
+        return this;
+    }
+
+    public long getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+
+    /**
+     * Interval in ms of the pings that keep the connection alive. Keep it below the server's ping timeout, 10 seconds by default;
+     * other traffic does not count as a sign of life. Defaults to 5000. Use 0 to disable heartbeats.
+     */
+    public EventBusBridgeOptions setHeartbeatInterval(long heartbeatInterval) {
+        this.heartbeatInterval = heartbeatInterval;
+        return this;
+    }
+
+    public String getHeartbeatProbeAddress() {
+        return heartbeatProbeAddress;
+    }
+
+    /**
+     * If set, every heartbeat also sends a request to this address, and its reply measures the round trip time.
+     * The server needs a consumer on this address that replies right away.
+     */
+    public EventBusBridgeOptions setHeartbeatProbeAddress(String heartbeatProbeAddress) {
+        this.heartbeatProbeAddress = heartbeatProbeAddress;
+        return this;
+    }
+
+    public BridgeMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Where the bridge reports traffic, timings and reconnects. Defaults to BridgeMetrics.NONE, which skips all measurements.
+     * The instance is shared by copies of these options, e.g. by all connections of a ShardedEventBusBridge.
+     */
+    public EventBusBridgeOptions setMetrics(BridgeMetrics metrics) {
+        this.metrics = Objects.requireNonNull(metrics);
+        return this;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * If greater than 0, published messages whose frame would be larger than this many bytes are sent as several frames of at most
+     * this size and reassembled by the receiving bridge. Keep it below the server's maximum websocket frame size, which is 65536 by default.
+     * Sends and replies are never chunked: a send spreads its frames over the address's consumers, and a reply address takes one message.
+     * 0 (the default) sends every message as one frame. Received chunks are only reassembled if this is set or a ChunkHandler is
+     * registered for the address; otherwise they are delivered as they are.
+     */
+    public EventBusBridgeOptions setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    public int getMaxReassemblySize() {
+        return maxReassemblySize;
+    }
+
+    /**
+     * Upper bound in bytes for chunks held while messages are reassembled. When it is reached, the oldest incomplete messages are dropped.
+     * Messages larger than this are dropped. Defaults to 16MB.
+     */
+    public EventBusBridgeOptions setMaxReassemblySize(int maxReassemblySize) {
+        this.maxReassemblySize = maxReassemblySize;
+        return this;
+    }
+
+    public long getUnregisterGracePeriod() {
+        return unregisterGracePeriod;
+    }
+
+    /**
+     * Time in ms the bridge stays registered at the server after the last local handler of an address is gone.
+     * A handler registered again within this period reuses the registration, which avoids register and unregister frames
+     * for short lived handlers. Messages arriving in between are dropped. 0 (the default) unregisters right away, or at the end of
+     * the current event loop task if the last handler is removed on the event loop, e.g. by a handler that unregisters itself.
+     */
+    public EventBusBridgeOptions setUnregisterGracePeriod(long unregisterGracePeriod) {
+        this.unregisterGracePeriod = unregisterGracePeriod;
+        return this;
+    }
+
+    public boolean isAddressPatterns() {
+        return addressPatterns;
+    }
+
+    /**
+     * If true, handlers registered for an address with a '*' or '>' segment are pattern handlers, see EventBusBridge#registerHandler.
+     * If false (the default), every address is an exact address, so e.g. <code>orders.*</code> only receives messages sent to <code>orders.*</code>.
+     */
+    public EventBusBridgeOptions setAddressPatterns(boolean addressPatterns) {
+        this.addressPatterns = addressPatterns;
+        return this;
+    }
+}
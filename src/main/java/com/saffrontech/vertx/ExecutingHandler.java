@@ -0,0 +1,129 @@
+package com.saffrontech.vertx;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs a handler on an executor instead of the websocket's event loop.
+ * Messages are handed to the executor one at a time, in the order they were received,
+ * so the handler sees messages in order and never runs concurrently with itself.
+ * While queueSize messages wait for the executor, the bridges delivering them stop reading until half of them are handled.
+ * Wrappers of the same handler are equal; use {@link #unwrap} to compare with the handler that was registered.
+ */
+class ExecutingHandler<T> implements DefaultHandler<T> {
+    static final int DEFAULT_QUEUE_SIZE = 256;
+
+    final DefaultHandler<T> delegate;
+    private final Executor executor;
+    private final int queueSize;
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    private final Set<EventBusBridge> paused = new HashSet<>(); // bridges that stopped reading for this handler. Guarded by tasks
+    private final Object pauser = new Object(); // not this, wrappers of the same handler are equal
+    private boolean running;
+
+    ExecutingHandler(DefaultHandler<T> delegate, Executor executor) {
+        this(delegate, executor, DEFAULT_QUEUE_SIZE);
+    }
+
+    ExecutingHandler(DefaultHandler<T> delegate, Executor executor, int queueSize) {
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("queueSize must be positive");
+        }
+        this.delegate = delegate;
+        this.executor = executor;
+        this.queueSize = queueSize;
+    }
+
+    /** The handler that was registered: the delegate of an ExecutingHandler, any other handler itself. */
+    static DefaultHandler<?> unwrap(DefaultHandler<?> handler) {
+        return handler instanceof ExecutingHandler ? ((ExecutingHandler<?>) handler).delegate : handler;
+    }
+
+    @Override
+    public void invoke(EventBusBridge.EventBusMessage<T> message, EventBusBridge eb) {
+        // the received message is reused for the next handler, so hand over a copy
+        EventBusBridge.EventBusMessage<T> copy = eb.new EventBusMessage<>(message);
+        String registeredAddress = message.registeredAddress;
+        execute(() -> copy.deliverTo(delegate, registeredAddress), eb);
+    }
+
+    @Override
+    public void fail(Throwable cause, EventBusBridge eb) {
+        execute(() -> delegate.fail(cause, eb), null);
+    }
+
+    /** @param eb the bridge that delivered the message, paused if the queue is full. Null for tasks that do not come from the websocket. */
+    private void execute(Runnable task, EventBusBridge eb) {
+        synchronized (tasks) {
+            tasks.add(task);
+            if (eb != null && tasks.size() >= queueSize && paused.add(eb)) {
+                eb.pauseReading(pauser);
+            }
+            if (running) {
+                return;
+            }
+            running = true;
+        }
+        schedule();
+    }
+
+    /**
+     * Hand the next task to the executor. If the executor rejects it, e.g. because it was shut down,
+     * the queued tasks are dropped and the exception is rethrown, so later messages start over instead of queueing forever.
+     */
+    private void schedule() {
+        try {
+            executor.execute(this::runNext);
+        } catch (RuntimeException e) {
+            synchronized (tasks) {
+                tasks.clear();
+                running = false;
+                resumeAll();
+            }
+            throw e;
+        }
+    }
+
+    /** One task per executor run, so handlers sharing an executor take turns. */
+    private void runNext() {
+        Runnable task;
+        synchronized (tasks) {
+            task = tasks.poll();
+        }
+        try {
+            task.run();
+        } finally {
+            boolean more;
+            synchronized (tasks) {
+                more = !tasks.isEmpty();
+                running = more;
+                if (tasks.size() <= queueSize / 2) {
+                    resumeAll();
+                }
+            }
+            if (more) {
+                schedule();
+            }
+        }
+    }
+
+    /** Let the paused bridges read again. Must hold the tasks lock, so a pause cannot slip in between. */
+    private void resumeAll() {
+        for (EventBusBridge eb : paused) {
+            eb.resumeReading(pauser);
+        }
+        paused.clear();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ExecutingHandler && delegate.equals(((ExecutingHandler<?>) o).delegate);
+    }
+
+    @Override
+    public int hashCode() {
+        return delegate.hashCode();
+    }
+}
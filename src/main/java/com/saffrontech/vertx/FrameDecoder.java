@@ -0,0 +1,297 @@
+package com.saffrontech.vertx;
+
+import io.netty.buffer.ByteBuf;
+import io.vertx.core.MultiMap;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.CaseInsensitiveHeaders;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Reads the envelope of an inbound SockJS frame straight from the frame bytes.
+ * Only type, address and replyAddress are decoded. The positions of body and headers are recorded, but they are not parsed.
+ */
+class FrameDecoder {
+    private static final byte[] TYPE = "type".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ADDRESS = "address".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] REPLY_ADDRESS = "replyAddress".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] BODY = "body".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] HEADERS = "headers".getBytes(StandardCharsets.UTF_8);
+
+    /** The envelope fields of a frame. Body positions point into the original frame. */
+    static class Frame {
+        final Buffer buffer;
+        String type;
+        String address;
+        String replyAddress;
+        int bodyStart = -1;
+        int bodyEnd = -1;
+        int headersStart = -1;
+        int headersEnd = -1;
+
+        Frame(Buffer buffer) {
+            this.buffer = buffer;
+        }
+
+        boolean hasBody() {
+            return bodyStart >= 0;
+        }
+
+        Object decodeBody() {
+            return hasBody() ? decodeValue(buffer, bodyStart, bodyEnd) : null;
+        }
+
+        boolean hasHeaders() {
+            return headersStart >= 0;
+        }
+    }
+
+    private final Buffer buffer;
+    private final int length;
+    private int pos;
+
+    private FrameDecoder(Buffer buffer) {
+        this.buffer = buffer;
+        this.length = buffer.length();
+    }
+
+    /**
+     * Decode the envelope of a frame.
+     * @param buffer the frame
+     * @param wanted tested with the address as soon as it is known. Returns null for frames nobody wants, except for error frames.
+     * @return the decoded envelope or null if the frame was dropped
+     * @throws DecodeException if the frame is not a JSON object
+     */
+    static Frame decode(Buffer buffer, Predicate<String> wanted) {
+        return new FrameDecoder(buffer).readFrame(wanted);
+    }
+
+    private Frame readFrame(Predicate<String> wanted) {
+        Frame frame = new Frame(buffer);
+        skipWhitespace();
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            return frame;
+        }
+        while (true) {
+            skipWhitespace();
+            expect('"');
+            int keyStart = pos;
+            skipString();
+            int keyEnd = pos - 1;
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            int valueStart = pos;
+            skipValue();
+            int valueEnd = pos;
+
+            if (keyEquals(keyStart, keyEnd, ADDRESS)) {
+                frame.address = readString(valueStart, valueEnd);
+                if (!"err".equals(frame.type) && !wanted.test(frame.address)) {
+                    return null;
+                }
+            } else if (keyEquals(keyStart, keyEnd, BODY)) {
+                frame.bodyStart = valueStart;
+                frame.bodyEnd = valueEnd;
+            } else if (keyEquals(keyStart, keyEnd, REPLY_ADDRESS)) {
+                frame.replyAddress = readString(valueStart, valueEnd);
+            } else if (keyEquals(keyStart, keyEnd, TYPE)) {
+                frame.type = readString(valueStart, valueEnd);
+            } else if (keyEquals(keyStart, keyEnd, HEADERS)) {
+                frame.headersStart = valueStart;
+                frame.headersEnd = valueEnd;
+            }
+
+            skipWhitespace();
+            byte b = next();
+            if (b == '}') {
+                return frame;
+            } else if (b != ',') {
+                throw malformed("Expected ',' or '}'");
+            }
+        }
+    }
+
+    /** True if the buffer holds these bytes at the given position. */
+    static boolean startsWith(Buffer buffer, int start, byte[] prefix) {
+        if (start + prefix.length > buffer.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.getByte(start + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Decode a JSON value the same way JsonObject.getValue would return it. */
+    static Object decodeValue(Buffer buffer, int start, int end) {
+        byte first = buffer.getByte(start);
+        if (first == '"' && !hasEscapes(buffer, start + 1, end - 1)) {
+            return buffer.getString(start + 1, end - 1, "UTF-8");
+        }
+        try {
+            ByteBuf bytes = buffer.getByteBuf();
+            Object value;
+            if (bytes.hasArray()) {
+                value = Json.mapper.readValue(bytes.array(), bytes.arrayOffset() + start, end - start, Object.class);
+            } else {
+                value = Json.mapper.readValue(buffer.getBytes(start, end), Object.class);
+            }
+            if (value instanceof Map) {
+                return new JsonObject((Map<String, Object>) value);
+            } else if (value instanceof List) {
+                return new JsonArray((List) value);
+            }
+            return value;
+        } catch (IOException e) {
+            throw new DecodeException("Failed to decode:" + e.getMessage());
+        }
+    }
+
+    /**
+     * Decode a headers object. Values are strings, or arrays of strings for headers with several values.
+     * @return the headers, empty if the value is null
+     */
+    static MultiMap decodeHeaders(Buffer buffer, int start, int end) {
+        Object value = decodeValue(buffer, start, end);
+        if (value != null && !(value instanceof JsonObject)) {
+            throw new DecodeException("Headers must be a JSON object");
+        }
+        return toHeaders((JsonObject) value);
+    }
+
+    static MultiMap toHeaders(JsonObject json) {
+        MultiMap headers = new CaseInsensitiveHeaders();
+        if (json == null) {
+            return headers;
+        }
+        for (Map.Entry<String, Object> header : json) {
+            if (header.getValue() instanceof JsonArray) {
+                for (Object v : (JsonArray) header.getValue()) {
+                    headers.add(header.getKey(), String.valueOf(v));
+                }
+            } else if (header.getValue() != null) {
+                headers.add(header.getKey(), header.getValue().toString());
+            }
+        }
+        return headers;
+    }
+
+    private String readString(int start, int end) {
+        if (buffer.getByte(start) != '"') {
+            return buffer.getByte(start) == 'n' ? null : buffer.getString(start, end, "UTF-8");
+        }
+        return (String) decodeValue(buffer, start, end);
+    }
+
+    private boolean keyEquals(int start, int end, byte[] key) {
+        if (end - start != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.getByte(start + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasEscapes(Buffer buffer, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buffer.getByte(i) == '\\') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void skipValue() {
+        byte b = peek();
+        if (b == '"') {
+            pos++;
+            skipString();
+        } else if (b == '{' || b == '[') {
+            skipStructure();
+        } else {
+            while (pos < length) {
+                b = buffer.getByte(pos);
+                if (b == ',' || b == '}' || b == ']' || isWhitespace(b)) {
+                    break;
+                }
+                pos++;
+            }
+        }
+    }
+
+    /** Skip to the end of an object or array, including nested ones. Strings are skipped as a whole. */
+    private void skipStructure() {
+        int depth = 0;
+        do {
+            byte b = next();
+            if (b == '"') {
+                skipString();
+            } else if (b == '{' || b == '[') {
+                depth++;
+            } else if (b == '}' || b == ']') {
+                depth--;
+            }
+        } while (depth > 0);
+    }
+
+    /** Skip past the closing quote. pos must be just after the opening quote. */
+    private void skipString() {
+        while (true) {
+            byte b = next();
+            if (b == '\\') {
+                next();
+            } else if (b == '"') {
+                return;
+            }
+        }
+    }
+
+    private void skipWhitespace() {
+        while (pos < length && isWhitespace(buffer.getByte(pos))) {
+            pos++;
+        }
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private void expect(char c) {
+        if (next() != c) {
+            throw malformed("Expected '" + c + "'");
+        }
+    }
+
+    private byte peek() {
+        if (pos >= length) {
+            throw malformed("Unexpected end of frame");
+        }
+        return buffer.getByte(pos);
+    }
+
+    private byte next() {
+        byte b = peek();
+        pos++;
+        return b;
+    }
+
+    private DecodeException malformed(String reason) {
+        return new DecodeException("Failed to decode frame at " + pos + ": " + reason);
+    }
+}
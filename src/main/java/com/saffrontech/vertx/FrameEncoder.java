@@ -0,0 +1,281 @@
+package com.saffrontech.vertx;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.MultiMap;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.EncodeException;
+import io.vertx.core.json.Json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes outbound SockJS envelopes directly into a single, right-sized buffer.
+ * The <code>{"type":"send","address":"..."</code> prefix is encoded once per type and address and cached,
+ * except for replies, which go to a new address every time.
+ */
+class FrameEncoder {
+    /** Upper bound of cached prefixes, so sending to many one-off addresses cannot grow the cache without limit. */
+    static final int MAX_CACHED_PREFIXES = 4096;
+
+    private static final byte[] BODY_FIELD = ",\"body\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] REPLY_ADDRESS_FIELD = ",\"replyAddress\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] HEADERS_FIELD = ",\"headers\":".getBytes(StandardCharsets.UTF_8);
+    /** Bytes a chunk body adds besides its id and data, with room for the chunk numbers. */
+    static final int CHUNK_OVERHEAD = 64;
+    /** Marks a chunk body. Long and namespaced, so that regular messages are unlikely to start with it. */
+    static final String CHUNK_MARKER = "saffrontech.eventbusbridge.chunk";
+    static final byte[] CHUNK_PREFIX = ("[\"" + CHUNK_MARKER + "\",").getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+
+    private final ConcurrentHashMap<String, byte[]> sendPrefixes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, byte[]> publishPrefixes = new ConcurrentHashMap<>();
+
+    /** Encode a frame without a body, e.g. register or unregister. */
+    Buffer encode(String type, String address) {
+        byte[] prefix = prefix(type, address);
+        ByteBuf buf = Unpooled.buffer(prefix.length + 1);
+        buf.writeBytes(prefix);
+        buf.writeByte('}');
+        return Buffer.buffer(buf);
+    }
+
+    /** Encode a send or publish frame. */
+    Buffer encode(String type, String address, Object body, String replyAddress) {
+        return encode(type, address, body, replyAddress, null);
+    }
+
+    /**
+     * Encode a send or publish frame with headers.
+     * The bridge reads headers as a JSON object of strings, so only the first value of a header with several values is sent.
+     */
+    Buffer encode(String type, String address, Object body, String replyAddress, MultiMap headers) {
+        return encode(prefix(type, address), body, replyAddress, headers);
+    }
+
+    /** Encode a reply. Its prefix is not cached, the reply address is only used once. */
+    Buffer encodeReply(String address, Object body, String replyAddress, MultiMap headers) {
+        return encode(encodePrefix("send", address), body, replyAddress, headers);
+    }
+
+    private Buffer encode(byte[] prefix, Object body, String replyAddress, MultiMap headers) {
+        int size = prefix.length + BODY_FIELD.length + estimateSize(body) + 1;
+        if (replyAddress != null) {
+            size += REPLY_ADDRESS_FIELD.length + replyAddress.length() + 2;
+        }
+        boolean hasHeaders = headers != null && !headers.isEmpty();
+        if (hasHeaders) {
+            size += HEADERS_FIELD.length + 32 * headers.size();
+        }
+        ByteBuf buf = Unpooled.buffer(size);
+        buf.writeBytes(prefix);
+        buf.writeBytes(BODY_FIELD);
+        writeValue(buf, body);
+        if (replyAddress != null) {
+            buf.writeBytes(REPLY_ADDRESS_FIELD);
+            writeString(buf, replyAddress);
+        }
+        if (hasHeaders) {
+            buf.writeBytes(HEADERS_FIELD);
+            writeHeaders(buf, headers);
+        }
+        buf.writeByte('}');
+        return Buffer.buffer(buf);
+    }
+
+    /**
+     * Encode one chunk of a large message. The body is an array of a marker, the chunk id, the chunk's index and count and
+     * a slice of the message's JSON encoded body as base64 data, e.g. <code>["saffrontech.eventbusbridge.chunk","5f3a9c0e2b7d4e11.7",0,3,"..."]</code>.
+     * An array, because the server does not keep the order of object keys and the marker has to come first.
+     */
+    Buffer encodeChunk(String type, String address, String chunkId, int index, int count, ByteBuf data, String replyAddress, MultiMap headers) {
+        byte[] prefix = prefix(type, address);
+        int size = prefix.length + BODY_FIELD.length + CHUNK_OVERHEAD + chunkId.length() + base64Size(data.readableBytes());
+        if (replyAddress != null) {
+            size += REPLY_ADDRESS_FIELD.length + replyAddress.length() + 2;
+        }
+        boolean hasHeaders = headers != null && !headers.isEmpty();
+        if (hasHeaders) {
+            size += HEADERS_FIELD.length + 32 * headers.size();
+        }
+        ByteBuf buf = Unpooled.buffer(size);
+        buf.writeBytes(prefix);
+        buf.writeBytes(BODY_FIELD);
+        buf.writeBytes(CHUNK_PREFIX);
+        writeString(buf, chunkId);
+        buf.writeByte(',');
+        writeInt(buf, index);
+        buf.writeByte(',');
+        writeInt(buf, count);
+        buf.writeByte(',');
+        writeBase64(buf, data);
+        buf.writeByte(']');
+        if (replyAddress != null) {
+            buf.writeBytes(REPLY_ADDRESS_FIELD);
+            writeString(buf, replyAddress);
+        }
+        if (hasHeaders) {
+            buf.writeBytes(HEADERS_FIELD);
+            writeHeaders(buf, headers);
+        }
+        buf.writeByte('}');
+        return Buffer.buffer(buf);
+    }
+
+    int cachedPrefixes() {
+        return sendPrefixes.size() + publishPrefixes.size();
+    }
+
+    private byte[] prefix(String type, String address) {
+        ConcurrentHashMap<String, byte[]> cache;
+        if ("send".equals(type)) {
+            cache = sendPrefixes;
+        } else if ("publish".equals(type)) {
+            cache = publishPrefixes;
+        } else {
+            return encodePrefix(type, address);
+        }
+        byte[] prefix = cache.get(address);
+        if (prefix == null) {
+            prefix = encodePrefix(type, address);
+            if (cache.size() < MAX_CACHED_PREFIXES) {
+                cache.putIfAbsent(address, prefix);
+            }
+        }
+        return prefix;
+    }
+
+    private static byte[] encodePrefix(String type, String address) {
+        ByteBuf buf = Unpooled.buffer(type.length() + address.length() + 24);
+        buf.writeBytes("{\"type\":".getBytes(StandardCharsets.UTF_8));
+        writeString(buf, type);
+        buf.writeBytes(",\"address\":".getBytes(StandardCharsets.UTF_8));
+        writeString(buf, address);
+        byte[] prefix = new byte[buf.readableBytes()];
+        buf.readBytes(prefix);
+        return prefix;
+    }
+
+    private static int estimateSize(Object body) {
+        if (body instanceof String) {
+            return ((String) body).length() + 2;
+        }
+        if (body instanceof Buffer) {
+            return base64Size(((Buffer) body).length());
+        }
+        if (body instanceof byte[]) {
+            return base64Size(((byte[]) body).length);
+        }
+        return body == null ? NULL.length : 64;
+    }
+
+    static void writeValue(ByteBuf buf, Object value) {
+        if (value == null) {
+            buf.writeBytes(NULL);
+        } else if (value instanceof String) {
+            writeString(buf, (String) value);
+        } else if (value instanceof Buffer) {
+            writeBase64(buf, ((Buffer) value).getByteBuf());
+        } else if (value instanceof byte[]) {
+            writeBase64(buf, Unpooled.wrappedBuffer((byte[]) value));
+        } else {
+            try {
+                Json.mapper.writeValue(new ByteBufOutputStream(buf), value);
+            } catch (IOException e) {
+                throw new EncodeException("Failed to encode as JSON: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void writeHeaders(ByteBuf buf, MultiMap headers) {
+        buf.writeByte('{');
+        boolean first = true;
+        for (String name : headers.names()) {
+            if (!first) {
+                buf.writeByte(',');
+            }
+            first = false;
+            writeString(buf, name);
+            buf.writeByte(':');
+            writeString(buf, headers.get(name));
+        }
+        buf.writeByte('}');
+    }
+
+    /** Write binary data as a base64 JSON string, straight into the frame. The base64 alphabet needs no JSON escaping. */
+    static void writeBase64(ByteBuf buf, ByteBuf data) {
+        buf.writeByte('"');
+        try (OutputStream base64 = Base64.getEncoder().wrap(new ByteBufOutputStream(buf))) {
+            data.getBytes(data.readerIndex(), base64, data.readableBytes());
+        } catch (IOException e) {
+            throw new EncodeException("Failed to encode as base64: " + e.getMessage());
+        }
+        buf.writeByte('"');
+    }
+
+    private static int base64Size(int length) {
+        return (length + 2) / 3 * 4 + 2;
+    }
+
+    private static void writeInt(ByteBuf buf, int value) {
+        buf.writeBytes(Integer.toString(value).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /** Write a JSON string literal as UTF-8, escaping the same characters Jackson does. */
+    static void writeString(ByteBuf buf, String value) {
+        buf.writeByte('"');
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                if (c == '"' || c == '\\') {
+                    buf.writeByte('\\');
+                    buf.writeByte(c);
+                } else if (c < 0x20) {
+                    writeControl(buf, c);
+                } else {
+                    buf.writeByte(c);
+                }
+            } else if (c < 0x800) {
+                buf.writeByte(0xc0 | (c >> 6));
+                buf.writeByte(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buf.writeByte(0xf0 | (codePoint >> 18));
+                buf.writeByte(0x80 | ((codePoint >> 12) & 0x3f));
+                buf.writeByte(0x80 | ((codePoint >> 6) & 0x3f));
+                buf.writeByte(0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                buf.writeByte('?'); // unpaired surrogate, same as String.getBytes
+            } else {
+                buf.writeByte(0xe0 | (c >> 12));
+                buf.writeByte(0x80 | ((c >> 6) & 0x3f));
+                buf.writeByte(0x80 | (c & 0x3f));
+            }
+        }
+        buf.writeByte('"');
+    }
+
+    private static void writeControl(ByteBuf buf, char c) {
+        buf.writeByte('\\');
+        switch (c) {
+            case '\b': buf.writeByte('b'); break;
+            case '\f': buf.writeByte('f'); break;
+            case '\n': buf.writeByte('n'); break;
+            case '\r': buf.writeByte('r'); break;
+            case '\t': buf.writeByte('t'); break;
+            default:
+                buf.writeByte('u');
+                buf.writeByte('0');
+                buf.writeByte('0');
+                buf.writeByte(HEX[c >> 4]);
+                buf.writeByte(HEX[c & 0xf]);
+        }
+    }
+}
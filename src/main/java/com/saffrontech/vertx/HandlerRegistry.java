@@ -0,0 +1,82 @@
+package com.saffrontech.vertx;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Local handlers per address.
+ * Each address maps to an immutable array that is replaced atomically on register and unregister,
+ * so dispatch iterates a stable snapshot without locking or allocating.
+ */
+class HandlerRegistry {
+    static final DefaultHandler<?>[] NO_HANDLERS = new DefaultHandler<?>[0];
+
+    private final ConcurrentHashMap<String, DefaultHandler<?>[]> handlers = new ConcurrentHashMap<>();
+
+    /** @return true if this is the first handler for the address */
+    boolean add(String address, DefaultHandler<?> handler) {
+        boolean[] first = new boolean[1];
+        handlers.compute(address, (key, current) -> {
+            if (current == null) {
+                first[0] = true;
+                return new DefaultHandler<?>[]{handler};
+            }
+            DefaultHandler<?>[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = handler;
+            return updated;
+        });
+        return first[0];
+    }
+
+    /**
+     * Remove one registration of the handler.
+     * @return true if the last handler for the address was removed
+     */
+    boolean remove(String address, DefaultHandler<?> handler) {
+        boolean[] last = new boolean[1];
+        handlers.computeIfPresent(address, (key, current) -> {
+            int index = indexOf(current, handler);
+            if (index < 0) {
+                return current;
+            }
+            if (current.length == 1) {
+                last[0] = true;
+                return null;
+            }
+            DefaultHandler<?>[] updated = new DefaultHandler<?>[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+            return updated;
+        });
+        return last[0];
+    }
+
+    /** The current handlers for an address. Never null, must not be modified. */
+    DefaultHandler<?>[] get(String address) {
+        DefaultHandler<?>[] current = handlers.get(address);
+        return current == null ? NO_HANDLERS : current;
+    }
+
+    boolean contains(String address) {
+        return handlers.containsKey(address);
+    }
+
+    Set<String> addresses() {
+        return handlers.keySet();
+    }
+
+    void clear() {
+        handlers.clear();
+    }
+
+    /** Handlers registered with an executor are found by the handler they wrap. */
+    private static int indexOf(DefaultHandler<?>[] current, DefaultHandler<?> handler) {
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].equals(handler) || ExecutingHandler.unwrap(current[i]).equals(handler)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,127 @@
+package com.saffrontech.vertx;
+
+import io.vertx.core.Context;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.WebSocket;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Frames waiting to be written, because the websocket's write queue is full or because the bridge is reconnecting.
+ * Frames are written in order. Each frame may carry a future that completes when the frame is handed to the websocket
+ * and fails when the frame is dropped.
+ */
+class OutboundQueue {
+
+    static class PendingWrite {
+        final Buffer frame;
+        final CompletableFuture<Void> written;
+
+        PendingWrite(Buffer frame, CompletableFuture<Void> written) {
+            this.frame = frame;
+            this.written = written;
+        }
+    }
+
+    private final ArrayDeque<PendingWrite> queue = new ArrayDeque<>();
+    private boolean closed;
+
+    synchronized int size() {
+        return queue.size();
+    }
+
+    synchronized boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    /**
+     * Queue a frame.
+     * @param limit maximum number of queued frames, 0 for no limit
+     * @throws IllegalStateException if the frame is rejected and has no future to report it to
+     */
+    synchronized void offer(PendingWrite write, int limit, OverflowPolicy policy) {
+        if (closed) {
+            reject(write, new IllegalStateException("Event bus bridge is closed"));
+            return;
+        }
+        while (limit > 0 && queue.size() >= limit) {
+            switch (policy) {
+                case DROP_OLDEST:
+                    drop(queue.poll());
+                    break;
+                case DROP_NEWEST:
+                    drop(write);
+                    return;
+                case WAIT:
+                    if (Context.isOnEventLoopThread()) {
+                        reject(write, new IllegalStateException("Outbound queue is full, cannot wait on an event loop thread"));
+                        return;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        reject(write, new IllegalStateException("Interrupted while waiting for the outbound queue"));
+                        return;
+                    }
+                    if (closed) {
+                        reject(write, new IllegalStateException("Event bus bridge is closed"));
+                        return;
+                    }
+                    break;
+                default:
+                    reject(write, new IllegalStateException("Outbound queue is full"));
+                    return;
+            }
+        }
+        queue.add(write);
+    }
+
+    /** Put frames in front of everything queued, e.g. register frames after a reconnect. */
+    synchronized void addFirst(List<Buffer> frames) {
+        for (int i = frames.size() - 1; i >= 0; i--) {
+            queue.addFirst(new PendingWrite(frames.get(i), null));
+        }
+    }
+
+    /**
+     * Write queued frames until the websocket's write queue is full.
+     * @return true if the queue is empty afterwards
+     */
+    synchronized boolean drainTo(WebSocket webSocket) {
+        PendingWrite next;
+        while (!webSocket.writeQueueFull() && (next = queue.poll()) != null) {
+            webSocket.write(next.frame);
+            if (next.written != null) {
+                next.written.complete(null);
+            }
+        }
+        notifyAll();
+        return queue.isEmpty();
+    }
+
+    /** Fail all queued frames and reject frames offered later. */
+    synchronized void close() {
+        closed = true;
+        PendingWrite write;
+        while ((write = queue.poll()) != null) {
+            drop(write);
+        }
+        notifyAll();
+    }
+
+    private static void reject(PendingWrite write, IllegalStateException cause) {
+        if (write.written == null) {
+            throw cause;
+        }
+        write.written.completeExceptionally(cause);
+    }
+
+    private static void drop(PendingWrite write) {
+        if (write.written != null) {
+            write.written.completeExceptionally(new IllegalStateException("Message dropped from outbound queue"));
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.saffrontech.vertx;
+
+/**
+ * What an EventBusBridge does with a message when its outbound queue is full.
+ * @see EventBusBridgeOptions#setOutboundQueueSize(int)
+ */
+public enum OverflowPolicy {
+    /** Reject the new message. send throws an IllegalStateException, sendAsync returns a failed future. */
+    FAIL,
+    /** Drop the oldest queued message to make room for the new one. */
+    DROP_OLDEST,
+    /** Drop the new message. */
+    DROP_NEWEST,
+    /**
+     * Block the sending thread until the queue has room. Sends from an event loop thread are rejected like FAIL,
+     * since blocking the event loop would stop the queue from ever draining.
+     */
+    WAIT
+}
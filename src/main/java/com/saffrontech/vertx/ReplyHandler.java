@@ -0,0 +1,21 @@
+package com.saffrontech.vertx;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+
+/**
+ * Handler for a reply that may also fail, e.g. when no reply arrives in time.
+ * Failures carry an io.vertx.core.eventbus.ReplyException.
+ */
+@FunctionalInterface
+public interface ReplyHandler<T> extends DefaultHandler<T> {
+    void handle(AsyncResult<EventBusBridge.EventBusMessage<T>> result);
+
+    default void invoke(EventBusBridge.EventBusMessage<T> message, EventBusBridge eb) {
+        handle(Future.succeededFuture(message));
+    }
+
+    default void fail(Throwable cause, EventBusBridge eb) {
+        handle(Future.failedFuture(cause));
+    }
+}
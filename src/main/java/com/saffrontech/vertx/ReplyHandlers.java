@@ -0,0 +1,197 @@
+package com.saffrontech.vertx;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reply handlers waiting for an answer, keyed by a primitive id.
+ * Reply addresses are a random per-bridge prefix followed by a monotonic counter, e.g. <code>5f3a9c0e2b7d4e11.42</code>.
+ * The prefix is drawn once per bridge, so creating a reply address never touches SecureRandom.
+ * Handlers are kept in lock-striped open addressing tables. Consecutive ids land on different stripes.
+ */
+class ReplyHandlers {
+
+    /** A handler waiting for a reply. Doubles as its entry in the reply timeout wheel. */
+    static class PendingReply extends TimingWheel.Timeout {
+        final long id;
+        final String address;
+        final DefaultHandler<?> handler;
+        final long sentNanos = System.nanoTime();
+
+        PendingReply(long id, String address, DefaultHandler<?> handler) {
+            this.id = id;
+            this.address = address;
+            this.handler = handler;
+        }
+    }
+
+    private static final int STRIPES = 16;
+
+    private final String prefix;
+    private final AtomicLong counter = new AtomicLong();
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    ReplyHandlers() {
+        prefix = String.format("%016x.", new SecureRandom().nextLong());
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Register a handler waiting for a reply.
+     * @param address the address the request is sent to
+     */
+    PendingReply add(String address, DefaultHandler<?> handler) {
+        long id = counter.incrementAndGet();
+        PendingReply pending = new PendingReply(id, address, handler);
+        stripe(id).put(id, pending);
+        return pending;
+    }
+
+    String address(long id) {
+        return prefix + id;
+    }
+
+    /** The reply id encoded in an address or -1 if the address is not one of our reply addresses. */
+    long idOf(String address) {
+        int length = address.length();
+        int start = prefix.length();
+        if (length <= start || length - start > 18 || !address.startsWith(prefix)) {
+            return -1;
+        }
+        long id = 0;
+        for (int i = start; i < length; i++) {
+            char c = address.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            id = id * 10 + (c - '0');
+        }
+        return id;
+    }
+
+    boolean contains(long id) {
+        return id > 0 && stripe(id).get(id) != null;
+    }
+
+    PendingReply remove(long id) {
+        return id > 0 ? stripe(id).remove(id) : null;
+    }
+
+    int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    /** Remove all pending replies and return them. */
+    List<PendingReply> removeAll() {
+        List<PendingReply> removed = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            stripe.drainTo(removed);
+        }
+        return removed;
+    }
+
+    private Stripe stripe(long id) {
+        return stripes[(int) (id & (STRIPES - 1))];
+    }
+
+    /** Open addressing hash table with linear probing. Ids are never 0, so 0 marks a free slot. */
+    private static class Stripe {
+        private long[] keys = new long[16];
+        private PendingReply[] values = new PendingReply[16];
+        private int size;
+
+        synchronized PendingReply get(long id) {
+            int mask = keys.length - 1;
+            for (int i = slot(id, mask); keys[i] != 0; i = (i + 1) & mask) {
+                if (keys[i] == id) {
+                    return values[i];
+                }
+            }
+            return null;
+        }
+
+        synchronized void put(long id, PendingReply pending) {
+            if ((size + 1) * 2 > keys.length) {
+                resize();
+            }
+            int mask = keys.length - 1;
+            int i = slot(id, mask);
+            while (keys[i] != 0 && keys[i] != id) {
+                i = (i + 1) & mask;
+            }
+            if (keys[i] == 0) {
+                size++;
+            }
+            keys[i] = id;
+            values[i] = pending;
+        }
+
+        synchronized PendingReply remove(long id) {
+            int mask = keys.length - 1;
+            int i = slot(id, mask);
+            while (keys[i] != id) {
+                if (keys[i] == 0) {
+                    return null;
+                }
+                i = (i + 1) & mask;
+            }
+            PendingReply removed = values[i];
+            size--;
+            // shift following entries back so lookups never stop at the hole
+            int hole = i;
+            for (int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+                int home = slot(keys[j], mask);
+                if (((j - home) & mask) >= ((j - hole) & mask)) {
+                    keys[hole] = keys[j];
+                    values[hole] = values[j];
+                    hole = j;
+                }
+            }
+            keys[hole] = 0;
+            values[hole] = null;
+            return removed;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized void drainTo(List<PendingReply> removed) {
+            for (PendingReply value : values) {
+                if (value != null) {
+                    removed.add(value);
+                }
+            }
+            Arrays.fill(keys, 0);
+            Arrays.fill(values, null);
+            size = 0;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            PendingReply[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new PendingReply[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int slot(long id, int mask) {
+            // ids within a stripe differ by multiples of STRIPES, so drop those bits before masking
+            return (int) ((id >>> 4) * 0x9E3779B97F4A7C15L >>> 32) & mask;
+        }
+    }
+}
@@ -0,0 +1,514 @@
+package com.saffrontech.vertx;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.json.JsonObject;
+import org.reactivestreams.Publisher;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+/**
+ * Spreads traffic over several websockets to the same endpoint.
+ * Each connection is an EventBusBridge that runs on its own event loop. Addresses are assigned to connections by consistent hash,
+ * so all messages and registrations for one address go through the same connection and keep their order.
+ * The API is the same as EventBusBridge. Methods that report on the connection, like writeQueueFull, pendingReplies or roundTripTime,
+ * aggregate over all connections. Handlers receive the EventBusBridge of the connection the message arrived on.
+ *
+ * Pattern handlers, if enabled with EventBusBridgeOptions.setAddressPatterns, are registered on every connection, since matching addresses may live on any of them.
+ * Note that msg.unregister() on a pattern handler only unregisters it from the connection that delivered the message.
+ *
+ * {@link #close()} closes the connections and undeploys the verticles they run in. A Vertx instance created by connect is closed as well.
+ */
+public class ShardedEventBusBridge {
+    final EventBusBridge[] shards;
+    private final Vertx vertx;
+    private final boolean ownsVertx;
+    private final boolean addressPatterns;
+    private final List<String> deploymentIDs = new ArrayList<>();
+    private volatile boolean closed;
+
+    /**
+     * Connect with the given number of websockets. The handler is called once all of them are open.
+     * @see EventBusBridge#connect(URI, Handler)
+     */
+    public static ShardedEventBusBridge connect(URI endPoint, int connections, Handler<ShardedEventBusBridge> onOpenHandler) {
+        return connect(-1, null, endPoint, connections, onOpenHandler, null, null, null);
+    }
+
+    public static ShardedEventBusBridge connect(URI endPoint, int connections, Handler<ShardedEventBusBridge> onOpenHandler, Vertx vertx) {
+        return connect(-1, null, endPoint, connections, onOpenHandler, null, null, vertx);
+    }
+
+    /**
+     * Connect with all options.
+     * @see EventBusBridge#connect(int, String, URI, Handler, HttpClientOptions, EventBusBridgeOptions, Vertx)
+     * @param connections number of websockets. Use at most the number of event loops of the Vertx instance, otherwise connections share event loops.
+     */
+    public static ShardedEventBusBridge connect(int port, String host, URI endPoint, int connections, Handler<ShardedEventBusBridge> onOpenHandler,
+                                                HttpClientOptions options, EventBusBridgeOptions bridgeOptions, Vertx vertx) {
+        if (connections < 1) {
+            throw new IllegalArgumentException("Need at least one connection");
+        }
+        Vertx actualVertx = vertx == null ? Vertx.vertx() : vertx;
+        ShardedEventBusBridge sharded = new ShardedEventBusBridge(connections, actualVertx, vertx == null,
+                bridgeOptions != null && bridgeOptions.isAddressPatterns());
+        AtomicInteger opened = new AtomicInteger();
+        for (int i = 0; i < connections; i++) {
+            int shard = i;
+            HttpClientOptions shardOptions = options == null ? null : new HttpClientOptions(options);
+            // every verticle deployment gets its own event loop context, which pins the connection to that event loop
+            actualVertx.deployVerticle(new AbstractVerticle() {
+                @Override
+                public void start() {
+                    if (sharded.closed) {
+                        return;
+                    }
+                    sharded.shards[shard] = EventBusBridge.connect(port, host, endPoint, eb -> {
+                        if (opened.incrementAndGet() == connections) {
+                            onOpenHandler.handle(sharded);
+                        }
+                    }, shardOptions, bridgeOptions, actualVertx);
+                }
+            }, sharded::deployed);
+        }
+        return sharded;
+    }
+
+    private ShardedEventBusBridge(int connections, Vertx vertx, boolean ownsVertx, boolean addressPatterns) {
+        this.shards = new EventBusBridge[connections];
+        this.vertx = vertx;
+        this.ownsVertx = ownsVertx;
+        this.addressPatterns = addressPatterns;
+    }
+
+    private void deployed(AsyncResult<String> deployment) {
+        if (deployment.failed()) {
+            return;
+        }
+        synchronized (deploymentIDs) {
+            if (!closed) {
+                deploymentIDs.add(deployment.result());
+                return;
+            }
+        }
+        // closed while deploying
+        if (!ownsVertx) {
+            vertx.undeploy(deployment.result());
+        }
+    }
+
+    private boolean isPattern(String address) {
+        return addressPatterns && AddressTrie.isPattern(address);
+    }
+
+    /** The connection responsible for an address. */
+    public EventBusBridge shard(String address) {
+        return shards[shardIndex(address, shards.length)];
+    }
+
+    public int size() {
+        return shards.length;
+    }
+
+    /**
+     * Jump consistent hash (Lamping and Veach). Only 1/n of the addresses move when a connection is added.
+     */
+    static int shardIndex(String address, int buckets) {
+        long key = address.hashCode() * 0x9E3779B97F4A7C15L;
+        key ^= key >>> 32;
+        long b = -1;
+        long j = 0;
+        while (j < buckets) {
+            b = j;
+            key = key * 2862933555777941757L + 1;
+            j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) b;
+    }
+
+    public ShardedEventBusBridge send(String address, String message) {
+        shard(address).send(address, message);
+        return this;
+    }
+
+    public ShardedEventBusBridge publish(String address, String message) {
+        shard(address).publish(address, message);
+        return this;
+    }
+
+    public ShardedEventBusBridge send(String address, String message, EventHandler<?> replyHandler) {
+        shard(address).send(address, message, replyHandler);
+        return this;
+    }
+
+    public ShardedEventBusBridge publish(String address, String message, EventHandler<?> replyHandler) {
+        shard(address).publish(address, message, replyHandler);
+        return this;
+    }
+
+    public ShardedEventBusBridge send(String address, String message, MessageHandler<?> replyHandler) {
+        shard(address).send(address, message, replyHandler);
+        return this;
+    }
+
+    public ShardedEventBusBridge publish(String address, String message, MessageHandler<?> replyHandler) {
+        shard(address).publish(address, message, replyHandler);
+        return this;
+    }
+
+    public ShardedEventBusBridge send(String address, JsonObject message) {
+        shard(address).send(address, message);
+        return this;
+    }
+
+    public ShardedEventBusBridge publish(String address, JsonObject message) {
+        shard(address).publish(address, message);
+        return this;
+    }
+
+    public ShardedEventBusBridge send(String address, JsonObject message, EventHandler<?> replyHandler) {
+        shard(address).send(address, message, replyHandler);
+        return this;
+    }
+
+    public ShardedEventBusBridge publish(String address, JsonObject message, EventHandler<?> replyHandler) {
+        shard(address).publish(address, message, replyHandler);
+        return this;
+    }
+
+    public ShardedEventBusBridge send(String address, JsonObject message, MessageHandler<?> replyHandler) {
+        shard(address).send(address, message, replyHandler);
+        return this;
+    }
+
+    public ShardedEventBusBridge publish(String address, JsonObject message, MessageHandler<?> replyHandler) {
+        shard(address).publish(address, message, replyHandler);
+        return this;
+    }
+
+    public ShardedEventBusBridge send(String address, Object message) {
+        shard(address).send(address, message);
+        return this;
+    }
+
+    public ShardedEventBusBridge publish(String address, Object message) {
+        shard(address).publish(address, message);
+        return this;
+    }
+
+    public ShardedEventBusBridge send(String address, Object message, DeliveryOptions options) {
+        shard(address).send(address, message, options);
+        return this;
+    }
+
+    public ShardedEventBusBridge publish(String address, Object message, DeliveryOptions options) {
+        shard(address).publish(address, message, options);
+        return this;
+    }
+
+    public ShardedEventBusBridge send(String address, String message, DeliveryOptions options, ReplyHandler<?> replyHandler) {
+        shard(address).send(address, message, options, replyHandler);
+        return this;
+    }
+
+    public ShardedEventBusBridge send(String address, JsonObject message, DeliveryOptions options, ReplyHandler<?> replyHandler) {
+        shard(address).send(address, message, options, replyHandler);
+        return this;
+    }
+
+    public ShardedEventBusBridge send(String address, Object message, DeliveryOptions options, ReplyHandler<?> replyHandler) {
+        shard(address).send(address, message, options, replyHandler);
+        return this;
+    }
+
+    public CompletableFuture<Void> sendAsync(String address, String message) {
+        return shard(address).sendAsync(address, message);
+    }
+
+    public CompletableFuture<Void> sendAsync(String address, JsonObject message) {
+        return shard(address).sendAsync(address, message);
+    }
+
+    public CompletableFuture<Void> sendAsync(String address, Object message) {
+        return shard(address).sendAsync(address, message);
+    }
+
+    public CompletableFuture<Void> publishAsync(String address, Object message) {
+        return shard(address).publishAsync(address, message);
+    }
+
+    public CompletableFuture<Void> publishAsync(String address, String message) {
+        return shard(address).publishAsync(address, message);
+    }
+
+    public CompletableFuture<Void> publishAsync(String address, JsonObject message) {
+        return shard(address).publishAsync(address, message);
+    }
+
+    public <T> CompletableFuture<EventBusBridge.EventBusMessage<T>> request(String address, String body, long timeout) {
+        return shard(address).request(address, body, timeout);
+    }
+
+    public <T> CompletableFuture<EventBusBridge.EventBusMessage<T>> request(String address, JsonObject body, long timeout) {
+        return shard(address).request(address, body, timeout);
+    }
+
+    public <T> CompletableFuture<EventBusBridge.EventBusMessage<T>> request(String address, Object body, long timeout) {
+        return shard(address).request(address, body, timeout);
+    }
+
+    public <T> CompletableFuture<List<EventBusBridge.EventBusMessage<T>>> requestAll(String address, List<?> bodies, long timeout) {
+        return shard(address).requestAll(address, bodies, timeout);
+    }
+
+    /**
+     * Publisher for an exact address. Patterns are not supported, since their messages arrive on every connection.
+     * @see EventBusBridge#publisher(String)
+     */
+    public <T> Publisher<EventBusBridge.EventBusMessage<T>> publisher(String address) {
+        return publisher(address, EventBusBridge.DEFAULT_PUBLISHER_BUFFER_SIZE);
+    }
+
+    /** @see #publisher(String) */
+    public <T> Publisher<EventBusBridge.EventBusMessage<T>> publisher(String address, int bufferSize) {
+        if (isPattern(address)) {
+            throw new IllegalArgumentException("Publishers of a sharded bridge need an exact address: " + address);
+        }
+        return shard(address).publisher(address, bufferSize);
+    }
+
+    public ShardedEventBusBridge registerHandler(String address, MessageHandler<?> messageHandler) {
+        return registerHandlerInternal(address, messageHandler);
+    }
+
+    public ShardedEventBusBridge registerHandler(String address, EventHandler<?> eventHandler) {
+        return registerHandlerInternal(address, eventHandler);
+    }
+
+    public <T> ShardedEventBusBridge registerHandler(String address, MessageHandler<T> messageHandler, Executor executor) {
+        return registerHandlerInternal(address, new ExecutingHandler<>(messageHandler, executor));
+    }
+
+    public <T> ShardedEventBusBridge registerHandler(String address, EventHandler<T> eventHandler, Executor executor) {
+        return registerHandlerInternal(address, new ExecutingHandler<>(eventHandler, executor));
+    }
+
+    public ShardedEventBusBridge unregisterHandler(String address, MessageHandler<?> messageHandler) {
+        return unregisterHandlerInternal(address, messageHandler);
+    }
+
+    public ShardedEventBusBridge unregisterHandler(String address, EventHandler<?> eventHandler) {
+        return unregisterHandlerInternal(address, eventHandler);
+    }
+
+    /**
+     * Register many handlers at once. Every connection registers its share of the addresses in a single task on its event loop.
+     * @see EventBusBridge#registerHandlers(Map)
+     */
+    public CompletableFuture<Void> registerHandlers(Map<String, ? extends DefaultHandler<?>> handlersByAddress) {
+        return forEachShard(handlersByAddress, EventBusBridge::registerHandlers);
+    }
+
+    /** @see EventBusBridge#unregisterHandlers(Map) */
+    public CompletableFuture<Void> unregisterHandlers(Map<String, ? extends DefaultHandler<?>> handlersByAddress) {
+        return forEachShard(handlersByAddress, EventBusBridge::unregisterHandlers);
+    }
+
+    /** Split handlers by connection; pattern handlers go to every connection. */
+    private CompletableFuture<Void> forEachShard(Map<String, ? extends DefaultHandler<?>> handlersByAddress,
+                                                 BiFunction<EventBusBridge, Map<String, DefaultHandler<?>>, CompletableFuture<Void>> action) {
+        List<Map<String, DefaultHandler<?>>> perShard = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            perShard.add(new HashMap<>());
+        }
+        for (Map.Entry<String, ? extends DefaultHandler<?>> entry : handlersByAddress.entrySet()) {
+            String address = entry.getKey();
+            if (isPattern(address)) {
+                for (Map<String, DefaultHandler<?>> handlers : perShard) {
+                    handlers.put(address, entry.getValue());
+                }
+            } else {
+                perShard.get(shardIndex(address, shards.length)).put(address, entry.getValue());
+            }
+        }
+        CompletableFuture<?>[] done = new CompletableFuture<?>[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            done[i] = action.apply(shards[i], perShard.get(i));
+        }
+        return CompletableFuture.allOf(done);
+    }
+
+    public ShardedEventBusBridge registerChunkHandler(String address, ChunkHandler chunkHandler) {
+        shard(address).registerChunkHandler(address, chunkHandler);
+        return this;
+    }
+
+    public ShardedEventBusBridge unregisterChunkHandler(String address, ChunkHandler chunkHandler) {
+        shard(address).unregisterChunkHandler(address, chunkHandler);
+        return this;
+    }
+
+    public ShardedEventBusBridge subscribe(String... addresses) {
+        for (String address : addresses) {
+            shard(address).subscribe(address);
+        }
+        return this;
+    }
+
+    public ShardedEventBusBridge unsubscribe(String... addresses) {
+        for (String address : addresses) {
+            shard(address).unsubscribe(address);
+        }
+        return this;
+    }
+
+    /**
+     * Called with the connection that was re-established, once for every connection that reconnects.
+     * @see EventBusBridge#reconnectHandler(Handler)
+     */
+    public ShardedEventBusBridge reconnectHandler(Handler<EventBusBridge> reconnectHandler) {
+        for (EventBusBridge shard : shards) {
+            shard.reconnectHandler(reconnectHandler);
+        }
+        return this;
+    }
+
+    /**
+     * True if the write queue of any connection is full, since the next message may go to any of them.
+     * Use {@link #shard(String)} to check the connection of a single address.
+     * @see EventBusBridge#writeQueueFull()
+     */
+    public boolean writeQueueFull() {
+        for (EventBusBridge shard : shards) {
+            if (shard.writeQueueFull()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Called once when the write queues of all connections are no longer full. */
+    public ShardedEventBusBridge drainHandler(Handler<Void> handler) {
+        if (handler == null) {
+            for (EventBusBridge shard : shards) {
+                shard.drainHandler(null);
+            }
+            return this;
+        }
+        AtomicInteger pending = new AtomicInteger(shards.length);
+        for (EventBusBridge shard : shards) {
+            shard.drainHandler(v -> {
+                if (pending.decrementAndGet() == 0) {
+                    handler.handle(null);
+                }
+            });
+        }
+        return this;
+    }
+
+    /**
+     * Mean of the round trip times of the connections that received a reply.
+     * @return the round trip time in the given unit or -1 if no reply was received yet
+     * @see EventBusBridge#roundTripTime(TimeUnit)
+     */
+    public long roundTripTime(TimeUnit unit) {
+        long sum = 0;
+        int measured = 0;
+        for (EventBusBridge shard : shards) {
+            long rtt = shard.roundTripTime(TimeUnit.NANOSECONDS);
+            if (rtt >= 0) {
+                sum += rtt;
+                measured++;
+            }
+        }
+        return measured == 0 ? -1 : unit.convert(sum / measured, TimeUnit.NANOSECONDS);
+    }
+
+    /** Number of reply handlers waiting for a reply, over all connections. */
+    public int pendingReplies() {
+        int pending = 0;
+        for (EventBusBridge shard : shards) {
+            pending += shard.pendingReplies();
+        }
+        return pending;
+    }
+
+    /** Number of messages not yet written, over all connections. */
+    public int outboundQueueDepth() {
+        int depth = 0;
+        for (EventBusBridge shard : shards) {
+            depth += shard.outboundQueueDepth();
+        }
+        return depth;
+    }
+
+    public void close() {
+        List<String> deployed;
+        synchronized (deploymentIDs) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            deployed = new ArrayList<>(deploymentIDs);
+            deploymentIDs.clear();
+        }
+        for (EventBusBridge shard : shards) {
+            if (shard != null) {
+                shard.close();
+            }
+        }
+        if (ownsVertx) {
+            vertx.close();
+            return;
+        }
+        for (String deploymentID : deployed) {
+            vertx.undeploy(deploymentID);
+        }
+    }
+
+    public boolean isOpen() {
+        for (EventBusBridge shard : shards) {
+            if (shard == null || !shard.isOpen()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ShardedEventBusBridge registerHandlerInternal(String address, DefaultHandler<?> handler) {
+        Objects.requireNonNull(handler);
+        if (isPattern(address)) {
+            for (EventBusBridge shard : shards) {
+                shard.registerHandlerInternal(address, handler);
+            }
+        } else {
+            shard(address).registerHandlerInternal(address, handler);
+        }
+        return this;
+    }
+
+    private ShardedEventBusBridge unregisterHandlerInternal(String address, DefaultHandler<?> handler) {
+        if (isPattern(address)) {
+            for (EventBusBridge shard : shards) {
+                shard.unregisterHandlerInternal(address, handler);
+            }
+        } else {
+            shard(address).unregisterHandlerInternal(address, handler);
+        }
+        return this;
+    }
+}
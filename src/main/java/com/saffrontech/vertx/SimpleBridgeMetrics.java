@@ -0,0 +1,153 @@
+package com.saffrontech.vertx;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lightweight in-memory metrics: LongAdder counters per address and latency histograms.
+ * One instance can be shared by several bridges, e.g. the connections of a ShardedEventBusBridge; its gauges then add up all of them.
+ */
+public class SimpleBridgeMetrics implements BridgeMetrics {
+
+    /** Traffic of one address. */
+    public static class AddressMetrics {
+        final LongAdder messagesIn = new LongAdder();
+        final LongAdder bytesIn = new LongAdder();
+        final LongAdder messagesOut = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+        final LatencyHistogram handlerTime = new LatencyHistogram();
+
+        public long messagesIn() {
+            return messagesIn.sum();
+        }
+
+        public long bytesIn() {
+            return bytesIn.sum();
+        }
+
+        public long messagesOut() {
+            return messagesOut.sum();
+        }
+
+        public long bytesOut() {
+            return bytesOut.sum();
+        }
+
+        public LatencyHistogram handlerTime() {
+            return handlerTime;
+        }
+    }
+
+    private final ConcurrentHashMap<String, AddressMetrics> addresses = new ConcurrentHashMap<>();
+    private final LatencyHistogram encodeTime = new LatencyHistogram();
+    private final LatencyHistogram decodeTime = new LatencyHistogram();
+    private final LongAdder reconnects = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final Set<EventBusBridge> bridges = ConcurrentHashMap.newKeySet();
+
+    @Override
+    public void bridgeCreated(EventBusBridge bridge) {
+        bridges.add(bridge);
+    }
+
+    @Override
+    public void bridgeClosed(EventBusBridge bridge) {
+        bridges.remove(bridge);
+    }
+
+    @Override
+    public void messageSent(String address, int bytes) {
+        AddressMetrics metrics = metricsFor(address);
+        metrics.messagesOut.increment();
+        metrics.bytesOut.add(bytes);
+    }
+
+    @Override
+    public void messageReceived(String address, int bytes) {
+        AddressMetrics metrics = metricsFor(address);
+        metrics.messagesIn.increment();
+        metrics.bytesIn.add(bytes);
+    }
+
+    @Override
+    public void errorReceived() {
+        errors.increment();
+    }
+
+    @Override
+    public void encoded(long nanos) {
+        encodeTime.record(nanos);
+    }
+
+    @Override
+    public void decoded(long nanos) {
+        decodeTime.record(nanos);
+    }
+
+    @Override
+    public void handlerExecuted(String address, long nanos) {
+        metricsFor(address).handlerTime.record(nanos);
+    }
+
+    @Override
+    public void reconnected() {
+        reconnects.increment();
+    }
+
+    private AddressMetrics metricsFor(String address) {
+        AddressMetrics metrics = addresses.get(address);
+        return metrics != null ? metrics : addresses.computeIfAbsent(address, a -> new AddressMetrics());
+    }
+
+    /** Metrics of an address or pattern, or null if nothing happened on it yet. */
+    public AddressMetrics address(String address) {
+        return addresses.get(address);
+    }
+
+    public Map<String, AddressMetrics> addresses() {
+        return Collections.unmodifiableMap(addresses);
+    }
+
+    public LatencyHistogram encodeTime() {
+        return encodeTime;
+    }
+
+    public LatencyHistogram decodeTime() {
+        return decodeTime;
+    }
+
+    public long reconnects() {
+        return reconnects.sum();
+    }
+
+    /** Error frames received from the server. */
+    public long errors() {
+        return errors.sum();
+    }
+
+    /** Bridges that are not closed yet, including bridges that are still connecting. */
+    public int openBridges() {
+        return bridges.size();
+    }
+
+    /** Reply handlers waiting for a reply, over all bridges. */
+    public int pendingReplies() {
+        int pending = 0;
+        for (EventBusBridge bridge : bridges) {
+            pending += bridge.pendingReplies();
+        }
+        return pending;
+    }
+
+    /** Messages waiting in outbound queues, over all bridges. */
+    public int outboundQueueDepth() {
+        int depth = 0;
+        for (EventBusBridge bridge : bridges) {
+            depth += bridge.outboundQueueDepth();
+        }
+        return depth;
+    }
+}
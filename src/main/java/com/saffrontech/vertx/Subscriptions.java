@@ -0,0 +1,43 @@
+package com.saffrontech.vertx;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Addresses the bridge is registered for at the server, with a reference count each.
+ * An address is referenced by its local handlers and by an explicit subscribe, so the register frame is sent once
+ * for the first reference and the unregister frame once the last reference is gone.
+ */
+class Subscriptions {
+    private final ConcurrentHashMap<String, Integer> counts = new ConcurrentHashMap<>();
+
+    /** @return true if this is the first reference, i.e. the address must be registered at the server */
+    boolean acquire(String address) {
+        return counts.merge(address, 1, Integer::sum) == 1;
+    }
+
+    /** @return true if this was the last reference, i.e. the address must be unregistered at the server */
+    boolean release(String address) {
+        boolean[] last = new boolean[1];
+        counts.computeIfPresent(address, (key, count) -> {
+            if (count == 1) {
+                last[0] = true;
+                return null;
+            }
+            return count - 1;
+        });
+        return last[0];
+    }
+
+    boolean contains(String address) {
+        return counts.containsKey(address);
+    }
+
+    Set<String> addresses() {
+        return counts.keySet();
+    }
+
+    void clear() {
+        counts.clear();
+    }
+}
@@ -0,0 +1,134 @@
+package com.saffrontech.vertx;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Hashed timing wheel. Scheduling and cancelling are O(1), and a single periodic timer advancing the wheel
+ * serves any number of outstanding timeouts.
+ * Deadlines are rounded up to the next tick, so timeouts fire up to one tick late, never early.
+ */
+class TimingWheel {
+
+    /** An entry in the wheel. Entries link themselves into their bucket, so the wheel allocates nothing per timeout. */
+    static class Timeout {
+        long deadlineTick;
+        Timeout prev;
+        Timeout next;
+        int bucket = -1;
+
+        boolean isScheduled() {
+            return bucket >= 0;
+        }
+    }
+
+    private final long tickMillis;
+    private final Timeout[] buckets;
+    private final int mask;
+    private final long startNanos;
+    private long currentTick;
+    private int size;
+
+    /**
+     * @param tickMillis resolution of the wheel
+     * @param wheelSize number of buckets, rounded up to a power of two
+     */
+    TimingWheel(long tickMillis, int wheelSize) {
+        this.tickMillis = tickMillis;
+        int n = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+        this.buckets = new Timeout[n];
+        this.mask = n - 1;
+        this.startNanos = System.nanoTime();
+    }
+
+    long tickMillis() {
+        return tickMillis;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Schedule a timeout to expire after delayMillis. A scheduled timeout is rescheduled. */
+    synchronized void schedule(Timeout timeout, long delayMillis) {
+        if (timeout.isScheduled()) {
+            unlink(timeout);
+        }
+        long elapsed = (System.nanoTime() - startNanos) / 1_000_000;
+        if (size == 0) {
+            currentTick = Math.max(currentTick, elapsed / tickMillis); // nothing to expire in between
+        }
+        long deadlineTick = (elapsed + delayMillis + tickMillis - 1) / tickMillis;
+        timeout.deadlineTick = Math.max(deadlineTick, currentTick + 1);
+        int bucket = (int) (timeout.deadlineTick & mask);
+        timeout.bucket = bucket;
+        timeout.prev = null;
+        timeout.next = buckets[bucket];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        buckets[bucket] = timeout;
+        size++;
+    }
+
+    /** @return true if the timeout was still scheduled */
+    synchronized boolean cancel(Timeout timeout) {
+        if (!timeout.isScheduled()) {
+            return false;
+        }
+        unlink(timeout);
+        return true;
+    }
+
+    /**
+     * Advance the wheel to the current time.
+     * @return the timeouts that expired. They are no longer scheduled.
+     */
+    List<Timeout> advance() {
+        long elapsed = (System.nanoTime() - startNanos) / 1_000_000;
+        return advanceTo(elapsed / tickMillis);
+    }
+
+    synchronized List<Timeout> advanceTo(long tick) {
+        List<Timeout> expired = null;
+        while (currentTick < tick && size > 0) {
+            currentTick++;
+            Timeout timeout = buckets[(int) (currentTick & mask)];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.deadlineTick <= currentTick) {
+                    unlink(timeout);
+                    if (expired == null) {
+                        expired = new ArrayList<>();
+                    }
+                    expired.add(timeout);
+                }
+                timeout = next;
+            }
+        }
+        if (size == 0) {
+            currentTick = Math.max(currentTick, tick);
+        }
+        return expired == null ? Collections.emptyList() : expired;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+        size--;
+    }
+}
@@ -0,0 +1,98 @@
+package com.saffrontech.vertx;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for wildcard address matching.
+ */
+public class AddressTrieTest {
+    AddressTrie trie = new AddressTrie();
+
+    @Test
+    public void testIsPattern() {
+        assertTrue(AddressTrie.isPattern("orders.*"));
+        assertTrue(AddressTrie.isPattern("metrics.eu.>"));
+        assertFalse(AddressTrie.isPattern("orders.new"));
+        assertFalse(AddressTrie.isPattern("orders*"));
+    }
+
+    @Test
+    public void testMatch() {
+        trie.add("orders.*", handler("one"));
+        trie.add("metrics.eu.>", handler("rest"));
+        trie.add("*.new", handler("first"));
+
+        assertEquals(list("one", "first"), matches("orders.new"));
+        assertEquals(list("one"), matches("orders.old"));
+        assertEquals(list(), matches("orders.new.today"));
+        assertEquals(list(), matches("orders"));
+        assertEquals(list("rest"), matches("metrics.eu.cpu"));
+        assertEquals(list("rest"), matches("metrics.eu.cpu.load"));
+        assertEquals(list(), matches("metrics.eu"));
+        assertFalse(trie.matches("metrics.us.cpu"));
+        assertTrue(trie.matches("metrics.eu.cpu"));
+    }
+
+    @Test
+    public void testRemove() {
+        DefaultHandler<?> handler = handler("one");
+        trie.add("orders.*", handler);
+        assertTrue(trie.remove("orders.*", handler));
+        assertFalse(trie.remove("orders.*", handler));
+        assertTrue(trie.isEmpty());
+        assertFalse(trie.matches("orders.new"));
+    }
+
+    @Test
+    public void testManySegments() {
+        List<DefaultHandler<?>> handlers = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            handlers.add(handler("h" + i));
+            trie.add("orders." + i + ".*", handlers.get(i));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(list("h" + i), matches("orders." + i + ".new"));
+        }
+        assertEquals(list(), matches("orders.100.new"));
+        assertEquals(list(), matches("orders.1"));
+        assertTrue(trie.remove("orders.42.*", handlers.get(42)));
+        assertEquals(list(), matches("orders.42.new"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRestMustBeLast() {
+        trie.add("metrics.>.cpu", handler("bad"));
+    }
+
+    private List<String> matches(String address) {
+        List<String> names = new ArrayList<>();
+        trie.forEachMatch(address, (pattern, handler) -> names.add(handler.toString()));
+        return names;
+    }
+
+    private static List<String> list(String... names) {
+        List<String> list = new ArrayList<>();
+        for (String name : names) {
+            list.add(name);
+        }
+        return list;
+    }
+
+    private static DefaultHandler<?> handler(String name) {
+        return new MessageHandler<Object>() {
+            @Override
+            public void handle(EventBusBridge.EventBusMessage<Object> message) {
+            }
+
+            @Override
+            public String toString() {
+                return name;
+            }
+        };
+    }
+}
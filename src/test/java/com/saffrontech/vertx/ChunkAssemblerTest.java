@@ -0,0 +1,62 @@
+package com.saffrontech.vertx;
+
+import io.vertx.core.buffer.Buffer;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the reassembly of chunked messages and its byte bound.
+ */
+public class ChunkAssemblerTest {
+
+    @Test
+    public void testReassemble() {
+        ChunkAssembler assembler = new ChunkAssembler(100);
+        assertNull(assembler.add("a", 0, 3, Buffer.buffer("\"ab")));
+        assertNull(assembler.add("b", 0, 2, Buffer.buffer("[1,")));
+        assertNull(assembler.add("a", 1, 3, Buffer.buffer("cd")));
+        assertEquals(Buffer.buffer("[1,2]"), assembler.add("b", 1, 2, Buffer.buffer("2]")));
+        assertEquals(Buffer.buffer("\"abcdef\""), assembler.add("a", 2, 3, Buffer.buffer("ef\"")));
+        assertEquals(0, assembler.size());
+        assertEquals(0, assembler.bytes());
+    }
+
+    @Test
+    public void testSingleChunk() {
+        ChunkAssembler assembler = new ChunkAssembler(100);
+        assertEquals(Buffer.buffer("42"), assembler.add("a", 0, 1, Buffer.buffer("42")));
+        assertEquals(0, assembler.size());
+    }
+
+    @Test
+    public void testOutOfOrderChunkDropsMessage() {
+        ChunkAssembler assembler = new ChunkAssembler(100);
+        assembler.add("a", 0, 3, Buffer.buffer("12"));
+        assertNull(assembler.add("a", 2, 3, Buffer.buffer("56")));
+        assertNull(assembler.add("a", 1, 3, Buffer.buffer("34")));
+        assertEquals(0, assembler.size());
+    }
+
+    @Test
+    public void testEvictOldest() {
+        ChunkAssembler assembler = new ChunkAssembler(10);
+        assembler.add("a", 0, 2, Buffer.buffer("1234"));
+        assembler.add("b", 0, 2, Buffer.buffer("1234"));
+        assembler.add("c", 0, 2, Buffer.buffer("1234"));
+        assertEquals(2, assembler.size());
+        assertEquals(8, assembler.bytes());
+        assertNull(assembler.add("a", 1, 2, Buffer.buffer("5")));
+        assertEquals(Buffer.buffer("12345"), assembler.add("b", 1, 2, Buffer.buffer("5")));
+    }
+
+    @Test
+    public void testTooLarge() {
+        ChunkAssembler assembler = new ChunkAssembler(10);
+        assembler.add("a", 0, 3, Buffer.buffer("123456"));
+        assertNull(assembler.add("a", 1, 3, Buffer.buffer("789012")));
+        assertEquals(0, assembler.size());
+        assertEquals(0, assembler.bytes());
+        assertNull(assembler.add("a", 2, 3, Buffer.buffer("3")));
+    }
+}
@@ -7,6 +7,7 @@ import io.vertx.core.http.HttpServerOptions;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.net.JksOptions;
 import io.vertx.ext.web.Router;
+import io.vertx.ext.web.handler.sockjs.BridgeEventType;
 import io.vertx.ext.web.handler.sockjs.BridgeOptions;
 import io.vertx.ext.web.handler.sockjs.PermittedOptions;
 import io.vertx.ext.web.handler.sockjs.SockJSHandler;
@@ -27,6 +28,7 @@ import static org.junit.Assert.*;
  */
 public class EventBusBridgeSSLTest {
     static Vertx vertx;
+    static final LongAdder openSockets = new LongAdder();
     LongAdder counter = new LongAdder();
     EventBusBridge bridge;
 
@@ -46,7 +48,15 @@ public class EventBusBridgeSSLTest {
                 addInboundPermitted(new PermittedOptions().setAddress("reply")).
                 addOutboundPermitted(new PermittedOptions().setAddress("replyTest"));
 
-        sockJSHandler.bridge(options);
+        // count the server side sockets, so every test can wait until the server has dropped the registrations of the previous one
+        sockJSHandler.bridge(options, event -> {
+            if (event.type() == BridgeEventType.SOCKET_CREATED) {
+                openSockets.increment();
+            } else if (event.type() == BridgeEventType.SOCKET_CLOSED) {
+                openSockets.decrement();
+            }
+            event.complete(true);
+        });
 
         router.route("/bridge/*").handler(sockJSHandler);
         // for reply test
@@ -74,9 +84,12 @@ public class EventBusBridgeSSLTest {
     }
 
     @After
-    public void cleanUp() {
+    public void cleanUp() throws InterruptedException {
         if (bridge != null)
             bridge.close();
+        for (int i = 0; i < 100 && openSockets.sum() > 0; i++) {
+            Thread.sleep(10);
+        }
     }
 
     @Test
@@ -1,9 +1,17 @@
 package com.saffrontech.vertx;
 
+import io.vertx.core.Context;
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.DeliveryOptions;
 import io.vertx.core.eventbus.Message;
+import io.vertx.core.eventbus.ReplyException;
+import io.vertx.core.eventbus.ReplyFailure;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.Router;
+import io.vertx.ext.web.handler.sockjs.BridgeEvent;
+import io.vertx.ext.web.handler.sockjs.BridgeEventType;
 import io.vertx.ext.web.handler.sockjs.BridgeOptions;
 import io.vertx.ext.web.handler.sockjs.PermittedOptions;
 import io.vertx.ext.web.handler.sockjs.SockJSHandler;
@@ -11,9 +19,23 @@ import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.LongAdder;
 
@@ -24,6 +46,7 @@ import static org.junit.Assert.*;
  */
 public class EventBusBridgeTest {
     static Vertx vertx;
+    static final LongAdder openSockets = new LongAdder();
     LongAdder counter = new LongAdder();
     EventBusBridge bridge;
 
@@ -41,11 +64,25 @@ public class EventBusBridgeTest {
                 addOutboundPermitted(new PermittedOptions().setAddress("end")).
                 addInboundPermitted(new PermittedOptions().setAddress("end")).
                 addInboundPermitted(new PermittedOptions().setAddress("reply")).
-                addOutboundPermitted(new PermittedOptions().setAddress("replyTest"));
+                addOutboundPermitted(new PermittedOptions().setAddress("replyTest")).
+                addInboundPermitted(new PermittedOptions().setAddress("noreply")).
+                addInboundPermitted(new PermittedOptions().setAddress("echo")).
+                addInboundPermitted(new PermittedOptions().setAddress("echoHeader")).
+                addInboundPermitted(new PermittedOptions().setAddress("replyLength"));
 
-        sockJSHandler.bridge(options);
+        // count the server side sockets, so every test can wait until the server has dropped the registrations of the previous one
+        sockJSHandler.bridge(options, EventBusBridgeTest::countSockets);
 
         router.route("/bridge/*").handler(sockJSHandler);
+        // same bridge, but sockets that do not ping within a second are closed
+        router.route("/shortPing/*").handler(SockJSHandler.create(vertx).bridge(new BridgeOptions(options).setPingTimeout(1000), EventBusBridgeTest::countSockets));
+        // for reply timeout test
+        vertx.eventBus().consumer("noreply", msg -> {});
+        vertx.eventBus().consumer("echo", msg -> msg.reply(msg.body()));
+        vertx.eventBus().consumer("echoHeader", msg -> msg.reply(msg.headers().get(msg.body().toString())));
+        // asks the client on replyTest and replies with the length of its answer
+        vertx.eventBus().consumer("replyLength", msg -> vertx.eventBus().send("replyTest", "replyToMe",
+                reply -> msg.reply(reply.succeeded() ? String.valueOf(reply.result().body().toString().length()) : reply.cause().getMessage())));
         // for reply test
         vertx.eventBus().consumer("reply", msg -> {
             vertx.eventBus().send("replyTest", "replyToMe", reply -> {
@@ -65,15 +102,27 @@ public class EventBusBridgeTest {
         System.out.println("Server listening on port 8765");
     }
 
+    private static void countSockets(BridgeEvent event) {
+        if (event.type() == BridgeEventType.SOCKET_CREATED) {
+            openSockets.increment();
+        } else if (event.type() == BridgeEventType.SOCKET_CLOSED) {
+            openSockets.decrement();
+        }
+        event.complete(true);
+    }
+
     @AfterClass
     public static void stopServer() {
         vertx.close();
     }
 
     @After
-    public void cleanUp() {
+    public void cleanUp() throws InterruptedException {
         if (bridge != null)
             bridge.close();
+        for (int i = 0; i < 100 && openSockets.sum() > 0; i++) {
+            Thread.sleep(10);
+        }
     }
 
     @Test
@@ -260,6 +309,126 @@ public class EventBusBridgeTest {
         });
         assertTrue(latch.await(5, TimeUnit.SECONDS));
     }
+    @Test
+    public void testRegisterAgainAfterLastUnregister() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+
+        bridge = EventBusBridge.connect(URI.create("http://localhost:8765/bridge"), eb -> {
+            MessageHandler<?> first = msg -> fail("unregistered handler must not be called");
+            eb.registerHandler("test", first);
+            eb.unregisterHandler("test", first);
+            assertEquals(0, eb.handlers.get("test").length);
+            eb.registerHandler("test", msg -> latch.countDown());
+            eb.send("test", "hello");
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testPatternHandler() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+
+        bridge = EventBusBridge.connect(URI.create("http://localhost:8765/bridge"), eb -> {
+            eb.registerHandler("*", msg -> {
+                assertEquals("test", msg.address());
+                msg.unregister();
+                assertTrue(eb.patternHandlers.isEmpty());
+                latch.countDown();
+            });
+            eb.subscribe("test");
+            eb.send("test", "hello");
+        }, new EventBusBridgeOptions().setAddressPatterns(true));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testWildcardsAreLiteralByDefault() throws Exception {
+        CountDownLatch opened = new CountDownLatch(1);
+        bridge = EventBusBridge.connect(URI.create("http://localhost:8765/bridge"), eb -> opened.countDown());
+        assertTrue(opened.await(5, TimeUnit.SECONDS));
+        MessageHandler<Object> handler = msg -> {};
+        bridge.registerHandler("test.*", handler);
+        assertTrue(bridge.handlers.contains("test.*"));
+        assertTrue(bridge.patternHandlers.isEmpty());
+        assertFalse(bridge.isPattern("test.*"));
+        bridge.unregisterHandler("test.*", handler);
+        assertFalse(bridge.handlers.contains("test.*"));
+    }
+
+    @Test
+    public void testSharded() throws Exception {
+        CountDownLatch latch = new CountDownLatch(2);
+
+        ShardedEventBusBridge sharded = ShardedEventBusBridge.connect(URI.create("http://localhost:8765/bridge"), 3, eb -> {
+            assertTrue(eb.isOpen());
+            eb.registerHandler("test", msg -> latch.countDown());
+            eb.registerHandler("end", msg -> latch.countDown());
+            eb.send("test", "hello");
+            eb.send("end", "bye");
+        }, vertx);
+        try {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } finally {
+            sharded.close();
+        }
+    }
+
+    @Test
+    public void testShardedAggregates() throws Exception {
+        CountDownLatch opened = new CountDownLatch(1);
+        ShardedEventBusBridge sharded = ShardedEventBusBridge.connect(URI.create("http://localhost:8765/bridge"), 2, eb -> opened.countDown(), vertx);
+        try {
+            assertTrue(opened.await(5, TimeUnit.SECONDS));
+            assertEquals(-1, sharded.roundTripTime(TimeUnit.NANOSECONDS));
+            Object body = "hello";
+            EventBusBridge.EventBusMessage<String> reply = sharded.<String>request("echo", body, 5000).get(5, TimeUnit.SECONDS);
+            assertEquals("hello", reply.body());
+            assertEquals(sharded.shard("echo").roundTripTime(TimeUnit.NANOSECONDS), sharded.roundTripTime(TimeUnit.NANOSECONDS));
+            assertEquals(0, sharded.pendingReplies());
+            assertEquals(0, sharded.outboundQueueDepth());
+            assertFalse(sharded.writeQueueFull());
+
+            CountDownLatch drained = new CountDownLatch(1);
+            sharded.drainHandler(v -> drained.countDown());
+            assertTrue(drained.await(5, TimeUnit.SECONDS));
+        } finally {
+            sharded.close();
+        }
+    }
+
+    @Test
+    public void testShardedCloseUndeploys() throws Exception {
+        int deployed = vertx.deploymentIDs().size();
+        CountDownLatch opened = new CountDownLatch(1);
+        ShardedEventBusBridge sharded = ShardedEventBusBridge.connect(URI.create("http://localhost:8765/bridge"), 2, eb -> opened.countDown(), vertx);
+        assertTrue(opened.await(5, TimeUnit.SECONDS));
+        assertEquals(deployed + 2, vertx.deploymentIDs().size());
+        sharded.close();
+        for (int i = 0; i < 100 && vertx.deploymentIDs().size() > deployed; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(deployed, vertx.deploymentIDs().size());
+        assertFalse(sharded.isOpen());
+    }
+
+    @Test
+    public void testShardIndexIsStable() {
+        for (int buckets = 1; buckets < 10; buckets++) {
+            int moved = 0;
+            for (int i = 0; i < 1000; i++) {
+                String address = "instrument." + i;
+                int index = ShardedEventBusBridge.shardIndex(address, buckets);
+                assertTrue(index >= 0 && index < buckets);
+                assertEquals(index, ShardedEventBusBridge.shardIndex(address, buckets));
+                if (index != ShardedEventBusBridge.shardIndex(address, buckets + 1)) {
+                    moved++;
+                }
+            }
+            // adding a connection only moves the addresses that go to the new one
+            assertTrue(moved < 2000 / (buckets + 1));
+        }
+    }
+
     @Test
     public void testHandlers() throws Exception {
         CountDownLatch latch = new CountDownLatch(2);
@@ -277,6 +446,683 @@ public class EventBusBridgeTest {
 
     }
 
+    @Test
+    public void testPublishJsonWithoutStreamingDecode() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        bridge = EventBusBridge.connect(URI.create("http://localhost:8765/bridge"), eb -> {
+            eb.registerHandler("test", msg -> {
+                assertEquals("world", msg.asJson().body().getString("hello"));
+                latch.countDown();
+            });
+            eb.publish("test", new JsonObject().put("hello", "world"));
+        }, new EventBusBridgeOptions().setStreamingDecode(false));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSendAsync() throws Exception {
+        CountDownLatch latch = new CountDownLatch(2);
+        bridge = EventBusBridge.connect(URI.create("http://localhost:8765/bridge"), eb -> {
+            eb.registerHandler("test", msg -> latch.countDown());
+            eb.sendAsync("test", "hello").thenRun(latch::countDown);
+        }, new EventBusBridgeOptions().setOutboundQueueSize(10).setOverflowPolicy(OverflowPolicy.DROP_OLDEST));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertFalse(bridge.writeQueueFull());
+
+        bridge.close();
+        assertTrue(bridge.sendAsync("test", "closed").isCompletedExceptionally());
+    }
+
+    @Test
+    public void testInboundQueue() throws Exception {
+        int count = 200;
+        CountDownLatch latch = new CountDownLatch(count);
+        List<String> received = Collections.synchronizedList(new ArrayList<>());
+        bridge = EventBusBridge.connect(URI.create("http://localhost:8765/bridge"), eb -> {
+            eb.registerHandler("test", msg -> {
+                received.add(msg.body().toString());
+                latch.countDown();
+            });
+            for (int i = 0; i < count; i++) {
+                eb.publish("test", String.valueOf(i));
+            }
+        }, new EventBusBridgeOptions().setInboundQueueSize(8));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < count; i++) {
+            assertEquals(String.valueOf(i), received.get(i));
+        }
+    }
+
+    @Test
+    public void testHandlerOnExecutor() throws Exception {
+        int count = 50;
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        CountDownLatch latch = new CountDownLatch(count);
+        List<String> received = Collections.synchronizedList(new ArrayList<>());
+        MessageHandler<String> slow = msg -> {
+            assertFalse(Context.isOnEventLoopThread());
+            received.add(msg.body());
+            latch.countDown();
+        };
+        try {
+            bridge = EventBusBridge.connect(URI.create("http://localhost:8765/bridge"), eb -> {
+                eb.registerHandler("test", slow, executor);
+                for (int i = 0; i < count; i++) {
+                    eb.publish("test", String.valueOf(i));
+                }
+            });
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < count; i++) {
+                assertEquals(String.valueOf(i), received.get(i));
+            }
+            bridge.unregisterHandler("test", slow);
+            assertFalse(bridge.handlers.contains("test"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSlowExecutorPausesReading() throws Exception {
+        CountDownLatch opened = new CountDownLatch(1);
+        bridge = EventBusBridge.connect(URI.create("http://localhost:8765/bridge"), eb -> opened.countDown());
+        assertTrue(opened.await(5, TimeUnit.SECONDS));
+
+        CountDownLatch release = new CountDownLatch(1);
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        ExecutorService slow = Executors.newSingleThreadExecutor();
+        try {
+            MessageHandler<String> handler = msg -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                received.add(msg.body());
+            };
+            bridge.registerHandlerInternal("test", new ExecutingHandler<>(handler, slow, 4));
+            for (int i = 0; i < 10; i++) {
+                bridge.publish("test", String.valueOf(i));
+            }
+            for (int i = 0; i < 500 && bridge.readPausers.isEmpty(); i++) {
+                Thread.sleep(10);
+            }
+            assertFalse(bridge.readPausers.isEmpty()); // four messages wait for the executor
+
+            release.countDown();
+            for (int i = 0; i < 10; i++) {
+                assertEquals(String.valueOf(i), received.poll(5, TimeUnit.SECONDS));
+            }
+            assertTrue(bridge.readPausers.isEmpty());
+        } finally {
+            slow.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRequest() throws Exception {
+        CountDownLatch opened = new CountDownLatch(1);
+        bridge = EventBusBridge.connect(URI.create("http://localhost:8765/bridge"), eb -> opened.countDown());
+        assertTrue(opened.await(5, TimeUnit.SECONDS));
+
+        EventBusBridge.EventBusMessage<String> reply = bridge.<String>request("echo", "hello", 5000).get(5, TimeUnit.SECONDS);
+        assertEquals("hello", reply.body());
+
+        List<EventBusBridge.EventBusMessage<JsonObject>> replies = bridge.<JsonObject>requestAll("echo",
+                Arrays.asList(new JsonObject().put("n", 1), new JsonObject().put("n", 2), new JsonObject().put("n", 3)), 5000)
+                .get(5, TimeUnit.SECONDS);
+        assertEquals(3, replies.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i + 1, (int) replies.get(i).body().getInteger("n"));
+        }
+
+        try {
+            bridge.request("noreply", "hello", 200).get(5, TimeUnit.SECONDS);
+            fail("expected a timeout");
+        } catch (ExecutionException e) {
+            assertEquals(ReplyFailure.TIMEOUT, ((ReplyException) e.getCause()).failureType());
+        }
+        assertEquals(0, bridge.replyHandlers.size());
+    }
+
+    @Test
+    public void testPublisher() throws Exception {
+        CountDownLatch opened = new CountDownLatch(1);
+        bridge = EventBusBridge.connect(URI.create("http://localhost:8765/bridge"), eb -> opened.countDown());
+        assertTrue(opened.await(5, TimeUnit.SECONDS));
+
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        CountDownLatch completed = new CountDownLatch(1);
+        Subscription[] subscription = new Subscription[1];
+        bridge.<String>publisher("test", 2).subscribe(new Subscriber<EventBusBridge.EventBusMessage<String>>() {
+            public void onSubscribe(Subscription s) {
+                subscription[0] = s;
+                s.request(1);
+            }
+
+            public void onNext(EventBusBridge.EventBusMessage<String> msg) {
+                received.add(msg.body());
+            }
+
+            public void onError(Throwable t) {
+            }
+
+            public void onComplete() {
+                completed.countDown();
+            }
+        });
+        for (int i = 0; i < 5; i++) {
+            bridge.publish("test", String.valueOf(i));
+        }
+        assertEquals("0", received.poll(5, TimeUnit.SECONDS));
+        assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+        assertFalse(bridge.readPausers.isEmpty()); // buffer is full, nobody asked for more
+
+        subscription[0].request(Long.MAX_VALUE);
+        for (int i = 1; i < 5; i++) {
+            assertEquals(String.valueOf(i), received.poll(5, TimeUnit.SECONDS));
+        }
+        assertTrue(bridge.readPausers.isEmpty());
+
+        bridge.close();
+        assertTrue(completed.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testTypedBodies() throws Exception {
+        CountDownLatch opened = new CountDownLatch(1);
+        bridge = EventBusBridge.connect(URI.create("http://localhost:8765/bridge"), eb -> opened.countDown());
+        assertTrue(opened.await(5, TimeUnit.SECONDS));
+
+        byte[] data = {0, 1, 2, (byte) 0xfe, (byte) 0xff};
+        EventBusBridge.EventBusMessage<String> binary = bridge.<String>request("echo", Buffer.buffer(data), 5000).get(5, TimeUnit.SECONDS);
+        assertEquals(Buffer.buffer(data), binary.binaryBody());
+
+        JsonArray array = new JsonArray().add(1).add("two");
+        assertEquals(array, bridge.<JsonArray>request("echo", array, 5000).get(5, TimeUnit.SECONDS).body());
+        assertEquals(42, (int) bridge.<Integer>request("echo", 42, 5000).get(5, TimeUnit.SECONDS).body());
+    }
+
+    @Test
+    public void testReplyWithJson() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        bridge = EventBusBridge.connect(URI.create("http://localhost:8765/bridge"), eb -> {
+            eb.registerHandler("test", msg -> msg.reply(new JsonObject().put("answer", 42)));
+            eb.send("test", "question", (EventHandler<JsonObject>) (reply, bridge) -> {
+                assertEquals(42, (int) reply.body().getInteger("answer"));
+                latch.countDown();
+            });
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testHeaders() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        bridge = EventBusBridge.connect(URI.create("http://localhost:8765/bridge"), eb -> {
+            eb.send("echoHeader", "region", new DeliveryOptions().addHeader("region", "eu"), reply -> {
+                assertEquals("eu", reply.result().body());
+                assertTrue(reply.result().headers().isEmpty());
+                latch.countDown();
+            });
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testChunking() throws Exception {
+        CountDownLatch latch = new CountDownLatch(2);
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            large.append("chunk ").append(i).append(' ');
+        }
+        List<Integer> streamed = new ArrayList<>();
+        bridge = EventBusBridge.connect(URI.create("http://localhost:8765/bridge"), eb -> {
+            eb.registerChunkHandler("test", (chunkId, index, count, data) -> {
+                streamed.add(index);
+                if (index == count - 1) {
+                    latch.countDown();
+                }
+            });
+            eb.registerHandler("test", msg -> {
+                assertEquals(large.toString(), msg.body());
+                latch.countDown();
+            });
+            eb.publish("test", large.toString());
+        }, new EventBusBridgeOptions().setChunkSize(1024));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(streamed.size() > 1);
+        for (int i = 0; i < streamed.size(); i++) {
+            assertEquals(i, (int) streamed.get(i));
+        }
+    }
+
+    @Test
+    public void testChunkLikeMessagesAreDelivered() throws Exception {
+        List<JsonArray> bodies = Arrays.asList(
+                new JsonArray().add(FrameEncoder.CHUNK_MARKER).add("x"),
+                new JsonArray().add(FrameEncoder.CHUNK_MARKER).add("id").add("0").add(1).add("ZGF0YQ=="),
+                new JsonArray().add(FrameEncoder.CHUNK_MARKER).add("id").add(0).add(1).add("not base64!"));
+        CountDownLatch latch = new CountDownLatch(bodies.size());
+        List<Object> received = Collections.synchronizedList(new ArrayList<>());
+        bridge = EventBusBridge.connect(URI.create("http://localhost:8765/bridge"), eb -> {
+            eb.registerHandler("test", msg -> {
+                received.add(msg.body());
+                latch.countDown();
+            });
+            bodies.forEach(body -> eb.publish("test", body));
+        }, new EventBusBridgeOptions().setChunkSize(1024));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(bodies, received);
+    }
+
+    @Test
+    public void testChunksNotReassembledWithoutChunking() throws Exception {
+        JsonArray chunk = new JsonArray().add(FrameEncoder.CHUNK_MARKER).add("id").add(0).add(1).add("ImRhdGEi");
+        CountDownLatch latch = new CountDownLatch(1);
+        bridge = EventBusBridge.connect(URI.create("http://localhost:8765/bridge"), eb -> {
+            eb.registerHandler("test", msg -> {
+                assertEquals(chunk, msg.body());
+                latch.countDown();
+            });
+            eb.publish("test", chunk);
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testBridgeClient() throws Exception {
+        BridgeClient client = BridgeClient.create(null, null, vertx);
+        CountDownLatch opened = new CountDownLatch(3);
+        List<EventBusBridge> bridges = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            bridges.add(client.connect(URI.create("http://localhost:8765/bridge"), eb -> opened.countDown()));
+        }
+        assertTrue(opened.await(5, TimeUnit.SECONDS));
+        assertEquals(3, client.size());
+        assertEquals(42, (int) bridges.get(1).<Integer>request("echo", 42, 5000).get(5, TimeUnit.SECONDS).body());
+
+        client.close();
+        for (EventBusBridge eb : bridges) {
+            assertFalse(eb.isOpen());
+        }
+        assertEquals(0, client.size());
+        try {
+            client.connect(URI.create("http://localhost:8765/bridge"), eb -> {});
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void testBridgeClientConnectFailed() throws Exception {
+        BridgeClient client = BridgeClient.create(null, null, vertx);
+        SimpleBridgeMetrics metrics = new SimpleBridgeMetrics();
+        try {
+            client.connect(URI.create("http://localhost:8766/bridge"), eb -> fail("nothing listens there"),
+                    new EventBusBridgeOptions().setMetrics(metrics));
+            for (int i = 0; i < 500 && (client.size() > 0 || metrics.openBridges() > 0); i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, client.size());
+            assertEquals(0, metrics.openBridges());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testRegisterHandlers() throws Exception {
+        CountDownLatch opened = new CountDownLatch(1);
+        bridge = EventBusBridge.connect(URI.create("http://localhost:8765/bridge"), eb -> opened.countDown(),
+                new EventBusBridgeOptions().setHeartbeatProbeAddress("echo"));
+        assertTrue(opened.await(5, TimeUnit.SECONDS));
+
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        Map<String, MessageHandler<String>> handlers = new HashMap<>();
+        handlers.put("test", msg -> received.add("test:" + msg.body()));
+        handlers.put("end", msg -> received.add("end:" + msg.body()));
+        bridge.registerHandlers(handlers).get(5, TimeUnit.SECONDS);
+        bridge.publish("test", "a").publish("end", "b");
+        List<String> messages = Arrays.asList(received.poll(5, TimeUnit.SECONDS), received.poll(5, TimeUnit.SECONDS));
+        assertTrue(messages.contains("test:a"));
+        assertTrue(messages.contains("end:b"));
+
+        bridge.unregisterHandlers(handlers).get(5, TimeUnit.SECONDS);
+        assertFalse(bridge.hasHandlers("test"));
+        assertFalse(bridge.hasHandlers("end"));
+    }
+
+    @Test
+    public void testRegisterHandlersRejected() throws Exception {
+        CountDownLatch opened = new CountDownLatch(1);
+        bridge = EventBusBridge.connect(URI.create("http://localhost:8765/bridge"), eb -> opened.countDown(),
+                new EventBusBridgeOptions().setHeartbeatProbeAddress("echo"));
+        assertTrue(opened.await(5, TimeUnit.SECONDS));
+
+        Map<String, MessageHandler<String>> handlers = new HashMap<>();
+        handlers.put("test", msg -> {});
+        handlers.put("notPermitted", msg -> {});
+        try {
+            bridge.registerHandlers(handlers).get(5, TimeUnit.SECONDS);
+            fail("the server does not permit notPermitted");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void testRegisterHandlersRejectedWithMetrics() throws Exception {
+        SimpleBridgeMetrics metrics = new SimpleBridgeMetrics();
+        CountDownLatch opened = new CountDownLatch(1);
+        bridge = EventBusBridge.connect(URI.create("http://localhost:8765/bridge"), eb -> opened.countDown(),
+                new EventBusBridgeOptions().setHeartbeatProbeAddress("echo").setMetrics(metrics));
+        assertTrue(opened.await(5, TimeUnit.SECONDS));
+
+        Map<String, MessageHandler<String>> handlers = new HashMap<>();
+        handlers.put("notPermitted", msg -> {});
+        try {
+            bridge.registerHandlers(handlers).get(5, TimeUnit.SECONDS);
+            fail("the server does not permit notPermitted");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(1, metrics.errors());
+    }
+
+    @Test
+    public void testUnregisterGracePeriod() throws Exception {
+        CountDownLatch opened = new CountDownLatch(1);
+        bridge = EventBusBridge.connect(URI.create("http://localhost:8765/bridge"), eb -> opened.countDown(),
+                new EventBusBridgeOptions().setUnregisterGracePeriod(200));
+        assertTrue(opened.await(5, TimeUnit.SECONDS));
+
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        MessageHandler<String> first = msg -> received.add("first:" + msg.body());
+        bridge.registerHandler("test", first);
+        bridge.unregisterHandler("test", first);
+        synchronized (bridge.lingering) {
+            assertTrue(bridge.lingering.containsKey("test"));
+        }
+        assertFalse(bridge.hasHandlers("test"));
+
+        MessageHandler<String> second = msg -> received.add("second:" + msg.body());
+        bridge.registerHandler("test", second);
+        synchronized (bridge.lingering) {
+            assertTrue(bridge.lingering.isEmpty());
+        }
+        bridge.publish("test", "hello");
+        assertEquals("second:hello", received.poll(5, TimeUnit.SECONDS));
+
+        bridge.unregisterHandler("test", second);
+        Thread.sleep(400); // unregistered at the server once the grace period is over
+        synchronized (bridge.lingering) {
+            assertTrue(bridge.lingering.isEmpty());
+        }
+    }
+
+    @Test
+    public void testUnregisterLingersUntilEndOfTask() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        bridge = EventBusBridge.connect(URI.create("http://localhost:8765/bridge"), eb -> {
+            MessageHandler<String> first = msg -> fail("unregistered handler must not be called");
+            eb.registerHandler("test", first);
+            eb.unregisterHandler("test", first);
+            synchronized (eb.lingering) {
+                assertTrue(eb.lingering.containsKey("test")); // on the event loop, the unregister frame waits for the end of the task
+            }
+            eb.registerHandler("test", msg -> latch.countDown());
+            synchronized (eb.lingering) {
+                assertTrue(eb.lingering.isEmpty());
+            }
+            eb.publish("test", "hello");
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testHandOffCountsAgainstOutboundQueue() throws Exception {
+        int limit = 10;
+        CountDownLatch opened = new CountDownLatch(1);
+        bridge = EventBusBridge.connect(URI.create("http://localhost:8765/bridge"), eb -> opened.countDown(),
+                new EventBusBridgeOptions().setOutboundQueueSize(limit));
+        assertTrue(opened.await(5, TimeUnit.SECONDS));
+
+        List<CompletableFuture<Void>> written = new ArrayList<>();
+        int maxHandedOff = 0;
+        int maxDepth = 0;
+        for (int i = 0; i < 20000; i++) { // from the test thread, so every frame is handed to the event loop
+            written.add(bridge.publishAsync("test", "message " + i));
+            maxHandedOff = Math.max(maxHandedOff, bridge.handOff.size());
+            maxDepth = Math.max(maxDepth, bridge.outboundQueueDepth());
+        }
+        assertTrue(maxHandedOff <= limit);
+        assertTrue(maxDepth <= 2 * limit);
+        for (CompletableFuture<Void> future : written) {
+            try {
+                future.get(5, TimeUnit.SECONDS);
+            } catch (ExecutionException rejected) {
+                assertTrue(rejected.getCause() instanceof IllegalStateException);
+            }
+        }
+        assertEquals(0, bridge.outboundQueueDepth());
+    }
+
+    @Test
+    public void testHandOffFillsWriteQueue() throws Exception {
+        int limit = 4;
+        CountDownLatch opened = new CountDownLatch(1);
+        bridge = EventBusBridge.connect(URI.create("http://localhost:8765/bridge"), eb -> opened.countDown(),
+                new EventBusBridgeOptions().setOutboundQueueSize(limit));
+        assertTrue(opened.await(5, TimeUnit.SECONDS));
+
+        // keep the event loop busy, so the frames written from the test thread stay in the hand-off
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        bridge.context.runOnContext(v -> {
+            blocked.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < limit; i++) {
+            assertFalse(bridge.writeQueueFull());
+            bridge.publish("test", "message " + i);
+        }
+        assertTrue(bridge.writeQueueFull());
+
+        CountDownLatch drained = new CountDownLatch(1);
+        bridge.drainHandler(v -> drained.countDown());
+        release.countDown();
+        assertTrue(drained.await(5, TimeUnit.SECONDS));
+        assertFalse(bridge.writeQueueFull());
+    }
+
+    @Test
+    public void testSendFromManyThreads() throws Exception {
+        int threads = 4;
+        int perThread = 250;
+        CountDownLatch latch = new CountDownLatch(threads * perThread);
+        Map<Integer, List<Integer>> received = new HashMap<>();
+        CountDownLatch opened = new CountDownLatch(1);
+        bridge = EventBusBridge.connect(URI.create("http://localhost:8765/bridge"), eb -> {
+            eb.registerHandler("test", (MessageHandler<JsonObject>) msg -> {
+                received.computeIfAbsent(msg.body().getInteger("thread"), t -> new ArrayList<>()).add(msg.body().getInteger("i"));
+                latch.countDown();
+            });
+            opened.countDown();
+        });
+        assertTrue(opened.await(5, TimeUnit.SECONDS));
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            executor.execute(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    bridge.publish("test", new JsonObject().put("thread", thread).put("i", i));
+                }
+            });
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+        for (List<Integer> fromThread : received.values()) {
+            for (int i = 0; i < perThread; i++) {
+                assertEquals(i, (int) fromThread.get(i)); // every thread's messages keep their order
+            }
+        }
+    }
+
+    @Test
+    public void testHeartbeatProbe() throws Exception {
+        CountDownLatch opened = new CountDownLatch(1);
+        bridge = EventBusBridge.connect(URI.create("http://localhost:8765/bridge"), eb -> opened.countDown(),
+                new EventBusBridgeOptions().setHeartbeatInterval(50).setHeartbeatProbeAddress("echo"));
+        assertTrue(opened.await(5, TimeUnit.SECONDS));
+        assertEquals(-1, bridge.roundTripTime(TimeUnit.NANOSECONDS));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (bridge.roundTripTime(TimeUnit.NANOSECONDS) < 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(bridge.roundTripTime(TimeUnit.NANOSECONDS) > 0);
+    }
+
+    @Test
+    public void testHeartbeatOutlivesPingTimeout() throws Exception {
+        CountDownLatch opened = new CountDownLatch(1);
+        bridge = EventBusBridge.connect(URI.create("http://localhost:8765/shortPing"), eb -> opened.countDown(),
+                new EventBusBridgeOptions().setHeartbeatInterval(300).setHeartbeatProbeAddress("echo"));
+        assertTrue(opened.await(5, TimeUnit.SECONDS));
+        // traffic and probes do not count as pings for the server
+        for (int i = 0; i < 25; i++) {
+            bridge.send("test", "hello");
+            Thread.sleep(100);
+        }
+        assertTrue(bridge.isOpen());
+        assertEquals("still there", bridge.<String>request("echo", "still there", 5000).get(5, TimeUnit.SECONDS).body());
+    }
+
+    @Test
+    public void testLargeReplyIsNotChunked() throws Exception {
+        StringBuilder large = new StringBuilder();
+        while (large.length() < 10000) {
+            large.append("reply ");
+        }
+        CountDownLatch opened = new CountDownLatch(1);
+        bridge = EventBusBridge.connect(URI.create("http://localhost:8765/bridge"), eb -> {
+            eb.registerHandler("replyTest", msg -> msg.reply(large.toString()));
+            opened.countDown();
+        }, new EventBusBridgeOptions().setChunkSize(1000));
+        assertTrue(opened.await(5, TimeUnit.SECONDS));
+        assertEquals(String.valueOf(large.length()), bridge.<String>request("replyLength", "go", 5000).get(5, TimeUnit.SECONDS).body());
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        SimpleBridgeMetrics metrics = new SimpleBridgeMetrics();
+        CountDownLatch latch = new CountDownLatch(1);
+        bridge = EventBusBridge.connect(URI.create("http://localhost:8765/bridge"), eb -> {
+            eb.registerHandler("test", msg -> latch.countDown());
+            eb.publish("test", "hello");
+        }, new EventBusBridgeOptions().setMetrics(metrics));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        bridge.<String>request("echo", "hello", 5000).get(5, TimeUnit.SECONDS);
+
+        SimpleBridgeMetrics.AddressMetrics test = metrics.address("test");
+        assertEquals(1, test.messagesOut());
+        assertEquals(1, test.messagesIn());
+        assertTrue(test.bytesIn() > 0);
+        assertEquals(1, test.handlerTime().count());
+        assertEquals(1, metrics.address("echo").messagesOut());
+        assertEquals(1, metrics.address(BridgeMetrics.REPLIES).messagesIn());
+        assertEquals(2, metrics.encodeTime().count());
+        assertEquals(0, metrics.pendingReplies());
+        assertEquals(0, metrics.outboundQueueDepth());
+    }
+
+    @Test
+    public void testRawBody() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        bridge = EventBusBridge.connect(URI.create("http://localhost:8765/bridge"), eb -> {
+            eb.registerHandler("test", msg -> {
+                assertEquals("test", msg.address());
+                assertEquals(new JsonObject().put("hello", "world"), new JsonObject(msg.rawBody().toString()));
+                assertEquals("world", msg.asJson().body().getString("hello"));
+                latch.countDown();
+            });
+            eb.publish("test", new JsonObject().put("hello", "world"));
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testReplyTimeout() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        bridge = EventBusBridge.connect(URI.create("http://localhost:8765/bridge"), eb -> {
+            eb.send("noreply", "hello?", new DeliveryOptions().setSendTimeout(200), reply -> {
+                assertTrue(reply.failed());
+                assertEquals(ReplyFailure.TIMEOUT, ((ReplyException) reply.cause()).failureType());
+                assertEquals(0, eb.replyHandlers.size());
+                latch.countDown();
+            });
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testReconnect() throws Exception {
+        CountDownLatch opened = new CountDownLatch(1);
+        CountDownLatch reconnected = new CountDownLatch(1);
+        CountDownLatch received = new CountDownLatch(2);
+
+        bridge = EventBusBridge.connect(URI.create("http://localhost:8765/bridge"), eb -> {
+            eb.registerHandler("test", msg -> received.countDown());
+            eb.reconnectHandler(it -> reconnected.countDown());
+            opened.countDown();
+        }, new EventBusBridgeOptions().setReconnect(true).setReconnectInitialDelay(200));
+        assertTrue(opened.await(5, TimeUnit.SECONDS));
+
+        bridge.webSocket.close(); // simulate a dropped connection
+        long deadline = System.currentTimeMillis() + 5000;
+        while (bridge.isOpen() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertFalse(bridge.isOpen());
+        bridge.send("test", "sent while reconnecting");
+
+        assertTrue(reconnected.await(5, TimeUnit.SECONDS));
+        bridge.send("test", "sent after reconnecting");
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testRegisterHandlersWhileReconnecting() throws Exception {
+        CountDownLatch opened = new CountDownLatch(1);
+        bridge = EventBusBridge.connect(URI.create("http://localhost:8765/bridge"), eb -> opened.countDown(),
+                new EventBusBridgeOptions().setReconnect(true).setReconnectInitialDelay(1000).setHeartbeatProbeAddress("echo"));
+        assertTrue(opened.await(5, TimeUnit.SECONDS));
+
+        bridge.webSocket.close(); // simulate a dropped connection
+        long deadline = System.currentTimeMillis() + 5000;
+        while (bridge.isOpen() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertFalse(bridge.isOpen());
+        CountDownLatch received = new CountDownLatch(1);
+        Map<String, MessageHandler<String>> handlers = new HashMap<>();
+        handlers.put("test", msg -> received.countDown());
+        CompletableFuture<Void> registered = bridge.registerHandlers(handlers);
+        Thread.sleep(100);
+        assertFalse(registered.isDone()); // reconnecting takes at least 500ms, nothing was sent yet
+
+        registered.get(5, TimeUnit.SECONDS);
+        assertTrue(bridge.isOpen());
+        bridge.send("test", "registered after reconnecting");
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+    }
+
     @Test
     public void testClose() throws Exception {
         bridge = EventBusBridge.connect(URI.create("http://localhost:8765/bridge"), eb -> {
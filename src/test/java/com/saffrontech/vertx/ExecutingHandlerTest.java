@@ -0,0 +1,53 @@
+package com.saffrontech.vertx;
+
+import org.junit.Test;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for handing messages to an executor.
+ */
+public class ExecutingHandlerTest {
+
+    @Test
+    public void testRejectedTaskDoesNotBlockLaterOnes() {
+        AtomicBoolean reject = new AtomicBoolean(true);
+        AtomicInteger failures = new AtomicInteger();
+        DefaultHandler<String> handler = new DefaultHandler<String>() {
+            @Override
+            public void fail(Throwable cause, EventBusBridge eb) {
+                failures.incrementAndGet();
+            }
+        };
+        ExecutingHandler<String> executing = new ExecutingHandler<>(handler, task -> {
+            if (reject.get()) {
+                throw new RejectedExecutionException("shut down");
+            }
+            task.run();
+        });
+        try {
+            executing.fail(new RuntimeException(), null);
+            fail("rejection should be rethrown");
+        } catch (RejectedExecutionException expected) {
+        }
+        reject.set(false);
+        executing.fail(new RuntimeException(), null);
+        assertEquals(1, failures.get());
+    }
+
+    @Test
+    public void testEqualOnlyToWrappers() {
+        DefaultHandler<String> handler = new DefaultHandler<String>() {
+        };
+        ExecutingHandler<String> executing = new ExecutingHandler<>(handler, Runnable::run);
+        assertEquals(executing, new ExecutingHandler<>(handler, Runnable::run));
+        assertNotEquals(executing, handler);
+        assertNotEquals(handler, executing);
+        assertSame(handler, ExecutingHandler.unwrap(executing));
+        assertSame(handler, ExecutingHandler.unwrap(handler));
+    }
+}
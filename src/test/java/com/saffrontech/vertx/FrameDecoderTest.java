@@ -0,0 +1,77 @@
+package com.saffrontech.vertx;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the streaming envelope decoder.
+ */
+public class FrameDecoderTest {
+
+    @Test
+    public void testDecodeEnvelope() {
+        Buffer buffer = Buffer.buffer("{\"address\":\"test\",\"body\":{\"hello\":\"world\",\"list\":[1,\"]}\"]},\"replyAddress\":\"r-1\"}");
+        FrameDecoder.Frame frame = FrameDecoder.decode(buffer, address -> true);
+        assertNotNull(frame);
+        assertEquals("test", frame.address);
+        assertEquals("r-1", frame.replyAddress);
+        assertNull(frame.type);
+        JsonObject body = (JsonObject) frame.decodeBody();
+        assertEquals("world", body.getString("hello"));
+        assertEquals(new JsonArray().add(1).add("]}"), body.getJsonArray("list"));
+    }
+
+    @Test
+    public void testDecodeScalarBodies() {
+        assertEquals("he said \"hi\"", decodeBody("\"he said \\\"hi\\\"\""));
+        assertEquals("plain", decodeBody(" \"plain\" "));
+        assertEquals(42, decodeBody("42"));
+        assertEquals(1.5, decodeBody("1.5"));
+        assertEquals(true, decodeBody("true"));
+        assertNull(decodeBody("null"));
+        assertEquals(new JsonArray().add("a"), decodeBody("[\"a\"]"));
+    }
+
+    @Test
+    public void testDecodeHeaders() {
+        Buffer buffer = Buffer.buffer("{\"address\":\"test\",\"headers\":{\"Region\":\"eu\",\"tag\":[\"a\",\"b\"]},\"body\":1}");
+        FrameDecoder.Frame frame = FrameDecoder.decode(buffer, address -> true);
+        assertTrue(frame.hasHeaders());
+        MultiMap headers = FrameDecoder.decodeHeaders(buffer, frame.headersStart, frame.headersEnd);
+        assertEquals("eu", headers.get("region"));
+        assertEquals(Arrays.asList("a", "b"), headers.getAll("tag"));
+        assertEquals(1, frame.decodeBody());
+    }
+
+    @Test
+    public void testDropUnwantedAddress() {
+        Buffer buffer = Buffer.buffer("{\"address\":\"nobody\",\"body\":{\"not\":\"parsed\"}}");
+        assertNull(FrameDecoder.decode(buffer, "test"::equals));
+    }
+
+    @Test
+    public void testErrorFramesAreNeverDropped() {
+        Buffer buffer = Buffer.buffer("{\"type\":\"err\",\"address\":\"nobody\",\"body\":\"access_denied\"}");
+        FrameDecoder.Frame frame = FrameDecoder.decode(buffer, address -> false);
+        assertNotNull(frame);
+        assertEquals("err", frame.type);
+    }
+
+    @Test(expected = DecodeException.class)
+    public void testMalformedFrame() {
+        FrameDecoder.decode(Buffer.buffer("{\"address\":\"test\""), address -> true);
+    }
+
+    private static Object decodeBody(String json) {
+        Buffer buffer = Buffer.buffer("{\"address\":\"test\",\"body\":" + json + "}");
+        return FrameDecoder.decode(buffer, address -> true).decodeBody();
+    }
+}
@@ -0,0 +1,94 @@
+package com.saffrontech.vertx;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.CaseInsensitiveHeaders;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.junit.Test;
+
+import java.util.Base64;
+
+import static org.junit.Assert.*;
+
+/**
+ * The encoder must produce the same envelopes as building them with JsonObject.
+ */
+public class FrameEncoderTest {
+    FrameEncoder encoder = new FrameEncoder();
+
+    @Test
+    public void testEncodeString() {
+        assertSameAsJsonObject("send", "test", "hello", null);
+        assertSameAsJsonObject("publish", "test", "quote \" backslash \\ tab \t newline \n bell \u0007", null);
+        assertSameAsJsonObject("send", "test", "umlaut \u00fc euro \u20ac emoji \ud83d\ude00", "reply-1");
+        assertSameAsJsonObject("send", "te\"st", null, null);
+    }
+
+    @Test
+    public void testEncodeJson() {
+        JsonObject body = new JsonObject().put("hello", "world").put("n", 42).put("nested", new JsonObject().put("a", true));
+        assertSameAsJsonObject("send", "test", body, null);
+        assertSameAsJsonObject("publish", "test", body, "reply-2");
+    }
+
+    @Test
+    public void testEncodeTypedBodies() {
+        assertSameAsJsonObject("send", "test", new JsonArray().add(1).add("two"), null);
+        assertSameAsJsonObject("send", "test", 42, null);
+        assertSameAsJsonObject("send", "test", 1.5, null);
+        assertSameAsJsonObject("send", "test", true, null);
+    }
+
+    @Test
+    public void testEncodeBinary() {
+        byte[] data = {0, 1, 2, (byte) 0xfe, (byte) 0xff, 42, 7};
+        assertSameAsJsonObject("send", "test", data, null); // JsonObject stores byte[] as base64
+        assertEquals(encoder.encode("send", "test", data, null).toString(), encoder.encode("send", "test", Buffer.buffer(data), null).toString());
+    }
+
+    @Test
+    public void testEncodeChunk() {
+        Buffer chunk = encoder.encodeChunk("publish", "test", "abc.1", 2, 3, Buffer.buffer("\"large\"").getByteBuf(), "reply.1", null);
+        JsonObject frame = new JsonObject(chunk.toString());
+        assertEquals("reply.1", frame.getString("replyAddress"));
+        JsonArray body = frame.getJsonArray("body");
+        assertEquals(new JsonArray().add(FrameEncoder.CHUNK_MARKER).add("abc.1").add(2).add(3).add(Base64.getEncoder().encodeToString("\"large\"".getBytes())), body);
+    }
+
+    @Test
+    public void testEncodeHeaders() {
+        MultiMap headers = new CaseInsensitiveHeaders().add("region", "eu").add("quote", "\"");
+        JsonObject expected = new JsonObject().put("type", "send").put("address", "test").put("body", "hi")
+                .put("headers", new JsonObject().put("region", "eu").put("quote", "\""));
+        assertEquals(expected, new JsonObject(encoder.encode("send", "test", "hi", null, headers).toString()));
+    }
+
+    @Test
+    public void testCachedPrefix() {
+        assertEquals(encoder.encode("send", "test", "a", null).toString(), encoder.encode("send", "test", "a", null).toString());
+        assertSameAsJsonObject("publish", "test", "a", null);
+    }
+
+    @Test
+    public void testReplyPrefixNotCached() {
+        assertEquals(encoder.encode("send", "reply.1", "a", "reply.2").toString(), encoder.encodeReply("reply.1", "a", "reply.2", null).toString());
+        int cached = encoder.cachedPrefixes();
+        encoder.encodeReply("reply.3", "a", null, null);
+        assertEquals(cached, encoder.cachedPrefixes());
+    }
+
+    @Test
+    public void testEncodeControlFrame() {
+        assertEquals(new JsonObject().put("type", "register").put("address", "test"),
+                new JsonObject(encoder.encode("register", "test").toString()));
+    }
+
+    private void assertSameAsJsonObject(String type, String address, Object body, String replyAddress) {
+        JsonObject expected = new JsonObject().put("type", type).put("address", address).put("body", body);
+        if (replyAddress != null) {
+            expected.put("replyAddress", replyAddress);
+        }
+        assertEquals(expected.encode(), encoder.encode(type, address, body, replyAddress).toString("UTF-8"));
+    }
+}
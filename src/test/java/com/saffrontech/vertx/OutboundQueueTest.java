@@ -0,0 +1,72 @@
+package com.saffrontech.vertx;
+
+import io.vertx.core.buffer.Buffer;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the overflow policies of the outbound queue.
+ */
+public class OutboundQueueTest {
+
+    private static OutboundQueue.PendingWrite write(String frame) {
+        return new OutboundQueue.PendingWrite(Buffer.buffer(frame), new CompletableFuture<>());
+    }
+
+    @Test
+    public void testFail() {
+        OutboundQueue queue = new OutboundQueue();
+        queue.offer(write("1"), 1, OverflowPolicy.FAIL);
+        OutboundQueue.PendingWrite second = write("2");
+        queue.offer(second, 1, OverflowPolicy.FAIL);
+        assertTrue(second.written.isCompletedExceptionally());
+        assertEquals(1, queue.size());
+
+        try {
+            queue.offer(new OutboundQueue.PendingWrite(Buffer.buffer("3"), null), 1, OverflowPolicy.FAIL);
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void testDrop() {
+        OutboundQueue queue = new OutboundQueue();
+        OutboundQueue.PendingWrite first = write("1");
+        OutboundQueue.PendingWrite second = write("2");
+        OutboundQueue.PendingWrite third = write("3");
+        queue.offer(first, 1, OverflowPolicy.DROP_OLDEST);
+        queue.offer(second, 1, OverflowPolicy.DROP_OLDEST);
+        assertTrue(first.written.isCompletedExceptionally());
+        assertFalse(second.written.isDone());
+
+        queue.offer(third, 1, OverflowPolicy.DROP_NEWEST);
+        assertTrue(third.written.isCompletedExceptionally());
+        assertFalse(second.written.isDone());
+        assertEquals(1, queue.size());
+
+        queue.offer(new OutboundQueue.PendingWrite(Buffer.buffer("4"), null), 1, OverflowPolicy.DROP_NEWEST); // dropped silently
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void testWaitIsReleasedByClose() throws Exception {
+        OutboundQueue queue = new OutboundQueue();
+        queue.offer(write("1"), 1, OverflowPolicy.WAIT);
+        OutboundQueue.PendingWrite second = write("2");
+        Thread producer = new Thread(() -> queue.offer(second, 1, OverflowPolicy.WAIT));
+        producer.start();
+        producer.join(100);
+        assertTrue(producer.isAlive());
+        assertFalse(second.written.isDone());
+
+        queue.close();
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertTrue(second.written.isCompletedExceptionally());
+        assertTrue(queue.isEmpty());
+    }
+}
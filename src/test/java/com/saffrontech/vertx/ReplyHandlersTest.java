@@ -0,0 +1,50 @@
+package com.saffrontech.vertx;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for reply id generation and the striped reply handler table.
+ */
+public class ReplyHandlersTest {
+
+    @Test
+    public void testAddressRoundTrip() {
+        ReplyHandlers replyHandlers = new ReplyHandlers();
+        long id = replyHandlers.add("test", (EventHandler<?>) (msg, eb) -> {}).id;
+        String address = replyHandlers.address(id);
+        assertEquals(id, replyHandlers.idOf(address));
+        assertTrue(replyHandlers.contains(id));
+        assertEquals(-1, replyHandlers.idOf("test"));
+        assertEquals(-1, replyHandlers.idOf(address + "x"));
+        assertEquals(-1, new ReplyHandlers().idOf(address));
+    }
+
+    @Test
+    public void testAddAndRemoveMany() {
+        ReplyHandlers replyHandlers = new ReplyHandlers();
+        List<Long> ids = new ArrayList<>();
+        List<DefaultHandler<?>> handlers = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            DefaultHandler<?> handler = (MessageHandler<?>) msg -> {};
+            handlers.add(handler);
+            ids.add(replyHandlers.add("test", handler).id);
+        }
+        assertEquals(10000, replyHandlers.size());
+        // remove every other one, the rest must still be found
+        for (int i = 0; i < ids.size(); i += 2) {
+            assertSame(handlers.get(i), replyHandlers.remove(ids.get(i)).handler);
+        }
+        for (int i = 0; i < ids.size(); i++) {
+            assertEquals(i % 2 == 1, replyHandlers.contains(ids.get(i)));
+        }
+        assertEquals(5000, replyHandlers.size());
+        assertNull(replyHandlers.remove(ids.get(0)));
+        assertEquals(5000, replyHandlers.removeAll().size());
+        assertEquals(0, replyHandlers.size());
+    }
+}
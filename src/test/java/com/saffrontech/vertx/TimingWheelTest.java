@@ -0,0 +1,46 @@
+package com.saffrontech.vertx;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the hashed timing wheel used for reply timeouts.
+ */
+public class TimingWheelTest {
+
+    @Test
+    public void testExpireInOrder() {
+        TimingWheel wheel = new TimingWheel(10, 8);
+        TimingWheel.Timeout soon = new TimingWheel.Timeout();
+        TimingWheel.Timeout later = new TimingWheel.Timeout();
+        TimingWheel.Timeout muchLater = new TimingWheel.Timeout();
+        wheel.schedule(soon, 20);
+        wheel.schedule(later, 50);
+        wheel.schedule(muchLater, 500); // several laps around the wheel
+        assertEquals(3, wheel.size());
+
+        long start = soon.deadlineTick;
+        assertTrue(wheel.advanceTo(start - 1).isEmpty());
+        assertEquals(1, wheel.advanceTo(start).size());
+        List<TimingWheel.Timeout> expired = wheel.advanceTo(later.deadlineTick);
+        assertEquals(1, expired.size());
+        assertSame(later, expired.get(0));
+        assertTrue(wheel.advanceTo(muchLater.deadlineTick - 1).isEmpty());
+        assertSame(muchLater, wheel.advanceTo(muchLater.deadlineTick).get(0));
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void testCancel() {
+        TimingWheel wheel = new TimingWheel(10, 8);
+        TimingWheel.Timeout timeout = new TimingWheel.Timeout();
+        wheel.schedule(timeout, 10);
+        assertTrue(wheel.cancel(timeout));
+        assertFalse(wheel.cancel(timeout));
+        assertTrue(wheel.advanceTo(timeout.deadlineTick + 100).isEmpty());
+        assertTrue(wheel.isEmpty());
+    }
+}